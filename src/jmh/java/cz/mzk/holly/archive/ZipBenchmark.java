@@ -0,0 +1,123 @@
+package cz.mzk.holly.archive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares packing time and archive size of format dependent entry compression with deflating every entry.
+ * Archive size is reported as archiveBytes secondary result.
+ *
+ * jp2 and jpg fixtures are incompressible like real compressed images, tif fixture is uncompressed raster.
+ *
+ * @author kremlacek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ZipBenchmark {
+
+    private static final int PAGE_COUNT = 20;
+
+    @Param({"jp2", "jpg", "tif"})
+    public String format;
+
+    @Param({"65536", "1048576", "8388608"})
+    public int pageSize;
+
+    private File dir;
+    private File archive;
+    private List<String> pages;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ArchiveSize {
+        public long archiveBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("holly_bench").toFile();
+        archive = new File(dir, "bench.zip");
+        pages = new ArrayList<>();
+
+        var random = new Random(42);
+
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            var page = new File(dir, "page" + i + "." + format);
+            var data = new byte[pageSize];
+
+            if (format.equals("tif")) {
+                //smooth gradient with little noise, compresses similarly to scanned raster
+                for (int j = 0; j < data.length; j++) {
+                    data[j] = (byte) ((j / 64) % 256 + random.nextInt(4));
+                }
+            } else {
+                random.nextBytes(data);
+            }
+
+            Files.write(page.toPath(), data);
+            pages.add(page.getAbsolutePath());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (var page : pages) {
+            new File(page).delete();
+        }
+
+        archive.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public void formatDependent(ArchiveSize size) throws IOException {
+        try (var writer = ArchiveWriter.create(archive)) {
+            ArchivePipeline.write(pages.iterator(), format, writer);
+        }
+
+        size.archiveBytes = archive.length();
+    }
+
+    @Benchmark
+    public void deflateAll(ArchiveSize size) throws IOException {
+        byte[] buffer = new byte[1024];
+
+        try (var zos = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (var page : pages) {
+                var file = new File(page);
+
+                try (var fis = new FileInputStream(file)) {
+                    zos.putNextEntry(new ZipEntry(file.getName()));
+                    int length;
+                    while ((length = fis.read(buffer)) > 0) {
+                        zos.write(buffer, 0, length);
+                    }
+                    zos.closeEntry();
+                }
+            }
+        }
+
+        size.archiveBytes = archive.length();
+    }
+}
@@ -0,0 +1,52 @@
+package cz.mzk.holly.extractor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Routing of tiles-urls to imageserver storage done for every page. Fixture mixes NDK urls of all routed years,
+ * MZK jp2 urls and tif urls.
+ *
+ * @author kremlacek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PhysicalPathBenchmark {
+
+    private static final int URL_COUNT = 200;
+
+    private List<String> urls;
+
+    @Setup
+    public void setup() throws IOException {
+        try (InputStream in = PhysicalPathBenchmark.class.getResourceAsStream("/fixtures/tiles-urls.txt")) {
+            urls = new String(in.readAllBytes(), StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+        }
+
+        if (urls.size() != URL_COUNT) {
+            throw new IllegalStateException("Fixture should contain " + URL_COUNT + " urls");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URL_COUNT)
+    public void physicalPath(Blackhole blackhole) {
+        for (var url : urls) {
+            blackhole.consume(ImageExtractor.getPhysicalPath(url, "/mnt/imageserver", "/mnt/ndk"));
+        }
+    }
+}
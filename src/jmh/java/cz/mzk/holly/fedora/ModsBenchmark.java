@@ -0,0 +1,42 @@
+package cz.mzk.holly.fedora;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Lookup of MODS elements used to select volumes and issues of periodical ranges (getModsFirstElement without
+ * the Fedora request). Volume fixture uses mods: prefix, which is looked up only after unprefixed lookup fails.
+ *
+ * @author kremlacek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ModsBenchmark {
+
+    @Param({"mods-periodical-volume.xml", "mods-periodical-item.xml"})
+    public String fixture;
+
+    @Param({"date", "number"})
+    public String element;
+
+    private String mods;
+
+    @Setup
+    public void setup() throws IOException {
+        mods = RelsExtBenchmark.loadFixture(fixture);
+    }
+
+    @Benchmark
+    public String modsFirstElement() {
+        return FedoraRESTConnector.getModsElement(mods, "uuid:bench", element);
+    }
+}
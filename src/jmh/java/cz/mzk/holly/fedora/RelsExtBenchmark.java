@@ -0,0 +1,110 @@
+package cz.mzk.holly.fedora;
+
+import cz.mzk.holly.DocumentUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Element;
+
+/**
+ * Compares single pass RelsExt parser with DOM based lookups used by the crawler before.
+ *
+ * Run with {@code gradle jmh -Pjmh.include=RelsExtBenchmark}, add {@code -prof gc} to jmh args to see allocations.
+ *
+ * @author kremlacek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RelsExtBenchmark {
+
+    private String monograph;
+    private String page;
+
+    @Setup
+    public void setup() throws IOException {
+        monograph = loadFixture("rels-ext-monograph.xml");
+        page = loadFixture("rels-ext-page.xml");
+    }
+
+    static String loadFixture(String name) throws IOException {
+        try (InputStream in = RelsExtBenchmark.class.getResourceAsStream("/fixtures/" + name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public RelsExt monographRelsExt() throws IOException {
+        return RelsExt.parse(monograph);
+    }
+
+    /**
+     * Model and page lookup of monograph node as done by processTree using DOM, two full parses
+     */
+    @Benchmark
+    public List<String> monographLegacyDom() throws Exception {
+        var model = legacyGetFedoraRDFResourceFromRels(monograph, "fedora-model:hasModel");
+
+        if (model.size() != 1) {
+            throw new IllegalStateException();
+        }
+
+        return legacyGetFedoraRDFResourceFromRels(monograph, "kramerius:hasPage");
+    }
+
+    @Benchmark
+    public String pageRelsExt() throws IOException {
+        return RelsExt.parse(page).getTilesUrl();
+    }
+
+    /**
+     * Tiles url lookup of page node done by rescanning the string for each namespace variant
+     */
+    @Benchmark
+    public String pageLegacyIndexOf() {
+        return legacyGetImageserverAdressFromRelsExt(page);
+    }
+
+    private static List<String> legacyGetFedoraRDFResourceFromRels(String xml, String elementTag) throws Exception {
+        var doc = DocumentUtils.loadDocumentFromString(xml);
+        var elements = doc.getElementsByTagName(elementTag);
+        List<String> results = new LinkedList<>();
+
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            results.add(element.getAttribute("rdf:resource").substring("info:fedora/".length()));
+        }
+
+        return results;
+    }
+
+    private static String legacyGetImageserverAdressFromRelsExt(String rels) {
+        int a = rels.indexOf("tiles-url") + 9;
+        int i = rels.indexOf(">", a) + 1;
+        int j = rels.indexOf("</tiles-url>");
+
+        if (j == -1) {
+            j = rels.indexOf("</kramerius4:tiles-url>");
+        }
+
+        if (j == -1) {
+            j = rels.indexOf("</kramerius:tiles-url>");
+        }
+
+        if (i > j || i == j || j - i < 27) {
+            return null;
+        }
+
+        return rels.substring(i, j);
+    }
+}
@@ -0,0 +1,76 @@
+package cz.mzk.holly.model;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Construction and traversal of periodical shaped batch tree (volumes, issues of 16 pages) with page paths
+ * as produced by the crawler. Add {@code -prof gc} to jmh args to see allocations.
+ *
+ * @author kremlacek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TreeNodeBenchmark {
+
+    private static final int PAGES_PER_ISSUE = 16;
+    private static final int ISSUES_PER_VOLUME = 300;
+
+    @Param({"2000", "200000"})
+    public int pageCount;
+
+    private TreeNode tree;
+
+    @Setup
+    public void setup() {
+        tree = build();
+    }
+
+    @Benchmark
+    public TreeNode construct() {
+        return build();
+    }
+
+    /**
+     * Iterates pages in archive order the same way as FileUtils does while packing
+     */
+    @Benchmark
+    public int traverse() {
+        int length = 0;
+
+        for (var pages = tree.pageIterator(); pages.hasNext(); ) {
+            length += pages.next().length();
+        }
+
+        return length;
+    }
+
+    private TreeNode build() {
+        var root = new TreeNode("");
+        var title = root.createSubTree("uuid:7f4a2c3e-6c5d-11e5-9a3b-005056827e51");
+        TreeNode volume = null;
+        TreeNode issue = null;
+
+        for (int page = 0; page < pageCount; page++) {
+            if (page % (PAGES_PER_ISSUE * ISSUES_PER_VOLUME) == 0) {
+                volume = title.createSubTree(String.format("uuid:%08x-6c5d-11e5-9a3b-005056827e51", page));
+            }
+
+            if (page % PAGES_PER_ISSUE == 0) {
+                issue = volume.createSubTree(String.format("uuid:%08x-6c5e-11e5-9a3b-005056827e51", page));
+            }
+
+            issue.addPagePath(String.format("/mnt/ndk/ndk03/2015/per/%08x/%08x-6c5f-11e5-9a3b-005056827e51.jp2", page / PAGES_PER_ISSUE, page));
+        }
+
+        return root;
+    }
+}
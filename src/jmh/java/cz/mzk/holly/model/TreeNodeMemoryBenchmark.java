@@ -0,0 +1,151 @@
+package cz.mzk.holly.model;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Heap retained by periodical shaped batch tree (volumes, issues of 16 pages) built by the former structure
+ * (page path strings in LinkedHashSet per node), by compact {@link TreeNode} and by compact tree with all file
+ * names spilled to memory-mapped files. Retained heap is reported as retainedBytes secondary result, it is measured
+ * after full GC and includes the tree only.
+ *
+ * @author kremlacek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TreeNodeMemoryBenchmark {
+
+    private static final int PAGES_PER_ISSUE = 16;
+    private static final int ISSUES_PER_VOLUME = 300;
+
+    @Param({"200000", "1000000"})
+    public int pageCount;
+
+    @Param({"strings", "compact", "spilled"})
+    public String structure;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RetainedHeap {
+        public long retainedBytes;
+    }
+
+    @Benchmark
+    public Object build(RetainedHeap heap) {
+        long before = usedHeap();
+
+        Object tree;
+
+        switch (structure) {
+            case "strings":
+                tree = buildStrings();
+                break;
+            case "compact":
+                tree = buildCompact(Long.MAX_VALUE);
+                break;
+            default:
+                tree = buildCompact(0);
+        }
+
+        heap.retainedBytes = usedHeap() - before;
+
+        return tree;
+    }
+
+    private TreeNode buildCompact(long heapLimit) {
+        var root = new TreeNode("", heapLimit);
+        var title = root.createSubTree("uuid:7f4a2c3e-6c5d-11e5-9a3b-005056827e51");
+        TreeNode volume = null;
+        TreeNode issue = null;
+
+        for (int page = 0; page < pageCount; page++) {
+            if (page % (PAGES_PER_ISSUE * ISSUES_PER_VOLUME) == 0) {
+                volume = title.createSubTree(volumeUuid(page));
+            }
+
+            if (page % PAGES_PER_ISSUE == 0) {
+                issue = volume.createSubTree(issueUuid(page));
+            }
+
+            issue.addPagePath(pagePath(page));
+        }
+
+        return root;
+    }
+
+    private StringTreeNode buildStrings() {
+        var root = new StringTreeNode();
+        var title = root.createSubTree("uuid:7f4a2c3e-6c5d-11e5-9a3b-005056827e51");
+        StringTreeNode volume = null;
+        StringTreeNode issue = null;
+
+        for (int page = 0; page < pageCount; page++) {
+            if (page % (PAGES_PER_ISSUE * ISSUES_PER_VOLUME) == 0) {
+                volume = title.createSubTree(volumeUuid(page));
+            }
+
+            if (page % PAGES_PER_ISSUE == 0) {
+                issue = volume.createSubTree(issueUuid(page));
+            }
+
+            issue.pagePaths.add(pagePath(page));
+        }
+
+        return root;
+    }
+
+    private static String volumeUuid(int page) {
+        return String.format("uuid:%08x-6c5d-11e5-9a3b-005056827e51", page);
+    }
+
+    private static String issueUuid(int page) {
+        return String.format("uuid:%08x-6c5e-11e5-9a3b-005056827e51", page);
+    }
+
+    private static String pagePath(int page) {
+        return String.format("/mnt/ndk/ndk03/2015/per/%08x/%08x-6c5f-11e5-9a3b-005056827e51.jp2", page / PAGES_PER_ISSUE, page);
+    }
+
+    /**
+     * @return heap used after full GC
+     */
+    private static long usedHeap() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+
+        //single System.gc may leave some garbage behind
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+
+        return used;
+    }
+
+    /**
+     * Former structure of batch tree
+     */
+    private static class StringTreeNode {
+        private final Map<String, StringTreeNode> subObjects = new LinkedHashMap<>();
+        private final Set<String> pagePaths = new LinkedHashSet<>();
+
+        private StringTreeNode createSubTree(String name) {
+            var subTree = new StringTreeNode();
+            subObjects.put(name, subTree);
+            return subTree;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package cz.mzk.holly.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Embedded stand-in of Fedora serving RELS-EXT and BIBLIO_MODS datastreams of {@link SyntheticLibrary} at
+ * {@code /fedora/objects/{uuid}/datastreams/{dsId}/content}. Every response is delayed by latency with uniform
+ * jitter and a fraction of requests fails with 503, so that retries and timeouts of the crawler are exercised.
+ *
+ * Resource index is not provided, FEDORA_RISEARCH should be disabled.
+ *
+ * @author kremlacek
+ */
+class FedoraStub {
+
+    private static final Logger logger = Logger.getLogger(FedoraStub.class.getName());
+
+    private static final String OBJECTS_PATH = "/fedora/objects/";
+
+    private final SyntheticLibrary library;
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong injectedErrors = new AtomicLong(0);
+
+    /**
+     * @param library served library
+     * @param port port to listen on, 0 for any free port
+     * @param threads count of requests served concurrently
+     * @param latencyMillis mean latency of response
+     * @param jitterMillis maximum deviation from mean latency
+     * @param errorRate fraction of requests failing with 503
+     * @throws IOException when server cannot be bound
+     */
+    FedoraStub(SyntheticLibrary library, int port, int threads, long latencyMillis, long jitterMillis, double errorRate) throws IOException {
+        this.library = library;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            var t = new Thread(r, "fedora-stub");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 256);
+        this.server.createContext(OBJECTS_PATH, this::handle);
+        this.server.setExecutor(executor);
+    }
+
+    void start() {
+        server.start();
+        logger.info("Fedora stub listening at http://localhost:" + getPort() + "/fedora");
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            delay();
+
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+
+            //objects/{uuid}/datastreams/{dsId}/content
+            var parts = exchange.getRequestURI().getRawPath().substring(OBJECTS_PATH.length()).split("/");
+
+            if (parts.length != 4 || !parts[1].equals("datastreams") || !parts[3].equals("content")) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            var uuid = URLDecoder.decode(parts[0], StandardCharsets.UTF_8);
+            String body;
+
+            switch (parts[2]) {
+                case "RELS-EXT":
+                    body = library.getRelsExt(uuid);
+                    break;
+                case "BIBLIO_MODS":
+                    body = library.getMods(uuid);
+                    break;
+                default:
+                    body = null;
+            }
+
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            var bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void delay() {
+        long delay = latencyMillis;
+
+        if (jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1);
+        }
+
+        if (delay <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
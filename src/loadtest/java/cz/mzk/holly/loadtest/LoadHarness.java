@@ -0,0 +1,326 @@
+package cz.mzk.holly.loadtest;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.extractor.BatchProgress;
+import cz.mzk.holly.extractor.ImageExtractor;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.zip.ZipFile;
+
+/**
+ * Submits many concurrent batches against {@link FedoraStub} and reports crawl and packing throughput and latency
+ * percentiles of every stage. Run by {@code gradle loadTest}, which points FEDORA_ADDRESS, BASE_PATH_MZK,
+ * BASE_PATH_NDK and BATCH_PATH into build/loadtest, see README for parameters.
+ *
+ * @author kremlacek
+ */
+public class LoadHarness {
+
+    private static final long POLL_INTERVAL = 20;
+
+    /**
+     * Timestamps of single batch, System.nanoTime
+     */
+    private static class BatchRun {
+        private final String name;
+        private final int index;
+        private long submitted;
+        private long crawled;
+        private long packingStarted;
+        private long finished;
+        private int pages;
+        private long archiveBytes;
+        private String failure;
+        private String incomplete;
+
+        private BatchRun(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        private boolean isDone() {
+            return finished != 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        var library = new SyntheticLibrary(
+                EnvUtils.getInt("STUB_PERIODICALS", 4),
+                EnvUtils.getInt("STUB_VOLUMES", 2),
+                EnvUtils.getInt("STUB_ISSUES", 6),
+                EnvUtils.getInt("STUB_ISSUE_PAGES", 8),
+                EnvUtils.getInt("STUB_MONOGRAPHS", 4),
+                EnvUtils.getInt("STUB_MONOGRAPH_PAGES", 40));
+
+        int batchCount = EnvUtils.getInt("LOADTEST_BATCHES", 20);
+        int clients = Math.max(1, EnvUtils.getInt("LOADTEST_CLIENTS", 4));
+        int titles = Math.max(1, EnvUtils.getInt("LOADTEST_TITLES", 1));
+        long timeout = TimeUnit.SECONDS.toNanos(EnvUtils.getLong("LOADTEST_TIMEOUT", 600));
+
+        var fedoraAddress = URI.create(EnvUtils.getString("FEDORA_ADDRESS", "http://localhost:18080/fedora"));
+
+        var images = library.createImages(
+                Path.of(requireEnv("BASE_PATH_MZK")),
+                Path.of(requireEnv("BASE_PATH_NDK")),
+                EnvUtils.getInt("LOADTEST_IMAGE_SIZE", 128 * 1024));
+
+        System.out.println("Synthetic images: " + images);
+
+        var stub = new FedoraStub(library,
+                fedoraAddress.getPort(),
+                EnvUtils.getInt("STUB_THREADS", 64),
+                EnvUtils.getLong("STUB_LATENCY_MS", 20),
+                EnvUtils.getLong("STUB_JITTER_MS", 10),
+                Double.parseDouble(EnvUtils.getString("STUB_ERROR_RATE", "0")));
+
+        stub.start();
+
+        try {
+            System.out.println("Pipelined packing: " + EnvUtils.getBoolean("BATCH_PIPELINE", false));
+
+            var runs = run(library, batchCount, clients, titles, timeout);
+            report(runs, stub);
+
+            if (runs.stream().anyMatch(r -> !r.isDone())) {
+                System.exit(1);
+            }
+        } finally {
+            stub.stop();
+        }
+    }
+
+    private static List<BatchRun> run(SyntheticLibrary library, int batchCount, int clients, int titles, long timeout) throws InterruptedException, IOException {
+        var imageExtractor = new ImageExtractor();
+        var packPath = imageExtractor.getPackPath();
+        var prefix = "loadtest-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+
+        Files.createDirectories(packPath);
+
+        var runs = new ArrayList<BatchRun>();
+
+        for (int i = 0; i < batchCount; i++) {
+            runs.add(new BatchRun(prefix + i + ".zip", i));
+        }
+
+        //clients submit batches concurrently, as users of the web form would
+        ExecutorService submitters = Executors.newFixedThreadPool(clients);
+        var start = new CountDownLatch(1);
+
+        for (var run : runs) {
+            submitters.execute(() -> {
+                try {
+                    start.await();
+                    run.submitted = System.nanoTime();
+                    submit(new ImageExtractor(), library, run, titles);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    run.failure = "Submit failed: " + e.getMessage();
+                    run.finished = System.nanoTime();
+                }
+            });
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        submitters.shutdown();
+        submitters.awaitTermination(1, TimeUnit.MINUTES);
+
+        while (System.nanoTime() - begin < timeout) {
+            boolean pending = false;
+
+            for (var run : runs) {
+                if (run.isDone()) {
+                    continue;
+                }
+
+                poll(packPath, run);
+                pending |= !run.isDone();
+            }
+
+            if (!pending) {
+                break;
+            }
+
+            Thread.sleep(POLL_INTERVAL);
+        }
+
+        return runs;
+    }
+
+    /**
+     * Every third batch is periodical with year and issue range, other batches combine periodical and given count
+     * of monographs
+     */
+    private static void submit(ImageExtractor imageExtractor, SyntheticLibrary library, BatchRun run, int titles) {
+        var periodical = library.getPeriodical(run.index % library.periodicals + 1);
+
+        if (run.index % 3 == 0) {
+            imageExtractor.batchPeriodical(run.name, periodical,
+                    1901, 1900 + library.volumes, "1", String.valueOf(library.issues), "jp2");
+        } else {
+            var uuids = new StringBuilder(periodical);
+
+            for (int i = 0; i < titles; i++) {
+                uuids.append('\n').append(library.getMonograph((run.index + i) % library.monographs + 1));
+            }
+
+            imageExtractor.batch(run.name, uuids.toString(), "jp2");
+        }
+    }
+
+    private static void poll(Path packPath, BatchRun run) {
+        long now = System.nanoTime();
+        var progress = BatchProgress.get(run.name);
+
+        if (progress != null) {
+            var phase = progress.getPhase();
+
+            if (run.crawled == 0 && (phase.equals("waiting") || phase.equals("packing"))) {
+                run.crawled = now;
+            }
+
+            if (run.packingStarted == 0 && phase.equals("packing")) {
+                run.packingStarted = now;
+            }
+        }
+
+        var zipFile = packPath.resolve(run.name).toFile();
+        var reportFile = new File(zipFile.getPath() + ImageExtractor.STATUS_SUFFIX);
+
+        if (zipFile.isFile()) {
+            //stages shorter than poll interval are attributed to the following stage
+            run.crawled = run.crawled == 0 ? now : run.crawled;
+            run.packingStarted = run.packingStarted == 0 ? run.crawled : run.packingStarted;
+            run.archiveBytes = zipFile.length();
+            run.finished = now;
+            run.pages = countEntries(zipFile);
+
+            //incomplete batch is packed with report next to the archive
+            run.incomplete = readReport(reportFile);
+        } else if (progress == null && reportFile.isFile()) {
+            //report is created empty and written afterwards
+            run.failure = readReport(reportFile);
+
+            if (run.failure != null) {
+                run.finished = now;
+            }
+        }
+    }
+
+    /**
+     * @return first line of the report, null if there is none
+     */
+    private static String readReport(File reportFile) {
+        if (!reportFile.isFile()) {
+            return null;
+        }
+
+        try {
+            return Files.readAllLines(reportFile.toPath()).stream().findFirst().orElse(null);
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private static int countEntries(File zipFile) {
+        try (var zip = new ZipFile(zipFile)) {
+            return zip.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void report(List<BatchRun> runs, FedoraStub stub) {
+        var succeeded = runs.stream().filter(r -> r.isDone() && r.failure == null).collect(Collectors.toList());
+        var failed = runs.stream().filter(r -> r.failure != null).collect(Collectors.toList());
+        long timedOut = runs.stream().filter(r -> !r.isDone()).count();
+
+        var incomplete = succeeded.stream().filter(r -> r.incomplete != null).collect(Collectors.toList());
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Batches: %d ok (%d incomplete), %d failed, %d timed out%n",
+                succeeded.size(), incomplete.size(), failed.size(), timedOut);
+
+        for (var run : incomplete) {
+            System.out.println("  " + run.name + ": " + run.incomplete);
+        }
+
+        for (var run : failed) {
+            System.out.println("  " + run.name + ": " + run.failure);
+        }
+
+        System.out.printf(Locale.ROOT, "Fedora stub: %d requests, %d injected errors%n", stub.getRequests(), stub.getInjectedErrors());
+
+        if (succeeded.isEmpty()) {
+            return;
+        }
+
+        long firstSubmit = runs.stream().mapToLong(r -> r.submitted).filter(t -> t != 0).min().orElse(0);
+        long lastCrawl = succeeded.stream().mapToLong(r -> r.crawled).max().orElse(firstSubmit);
+        long firstPacking = succeeded.stream().mapToLong(r -> r.packingStarted).min().orElse(0);
+        long lastFinish = succeeded.stream().mapToLong(r -> r.finished).max().orElse(0);
+        long pages = succeeded.stream().mapToLong(r -> r.pages).sum();
+        long bytes = succeeded.stream().mapToLong(r -> r.archiveBytes).sum();
+
+        System.out.printf(Locale.ROOT, "Wall time: %.1f s, %d pages, %.1f MB%n",
+                seconds(lastFinish - firstSubmit), pages, bytes / 1e6);
+        System.out.printf(Locale.ROOT, "Crawl throughput: %.1f pages/s%n", pages / seconds(lastCrawl - firstSubmit));
+        System.out.printf(Locale.ROOT, "Packing throughput: %.1f pages/s, %.1f MB/s%n",
+                pages / seconds(lastFinish - firstPacking), bytes / 1e6 / seconds(lastFinish - firstPacking));
+
+        System.out.println();
+        System.out.println("Latency [ms]       p50      p95      p99      max");
+        printLatency("crawl", succeeded, r -> r.crawled - r.submitted);
+        printLatency("queue wait", succeeded, r -> r.packingStarted - r.crawled);
+        printLatency("packing", succeeded, r -> r.finished - r.packingStarted);
+        printLatency("total", succeeded, r -> r.finished - r.submitted);
+    }
+
+    private static void printLatency(String stage, List<BatchRun> runs, ToLongFunction<BatchRun> duration) {
+        var values = runs.stream().map(duration::applyAsLong).sorted().collect(Collectors.toList());
+
+        System.out.printf(Locale.ROOT, "%-12s %8.0f %8.0f %8.0f %8.0f%n", stage,
+                millis(percentile(values, 0.50)), millis(percentile(values, 0.95)),
+                millis(percentile(values, 0.99)), millis(Collections.max(values)));
+    }
+
+    /**
+     * Nearest rank percentile of sorted values
+     */
+    private static long percentile(List<Long> sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+
+    private static double seconds(long nanos) {
+        return Math.max(1, nanos) / 1e9;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static String requireEnv(String name) {
+        var value = System.getenv(name);
+
+        if (value == null) {
+            throw new IllegalStateException("System not configured properly, please set " + name);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,249 @@
+package cz.mzk.holly.loadtest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic digital library of periodicals and monographs. Structure is derived from uuids, so that datastreams
+ * can be generated without keeping any state:
+ *
+ * <ul>
+ *     <li>periodical {@code uuid:perT}, volumes {@code uuid:perT-vV}, issues {@code uuid:perT-vV-iI},
+ *     pages {@code uuid:perT-vV-iI-pP} stored on NDK storage</li>
+ *     <li>monograph {@code uuid:monT}, pages {@code uuid:monT-pP} stored on MZK storage</li>
+ * </ul>
+ *
+ * Volume V is dated 1900 + V, issue I has number I, both starting at 1.
+ *
+ * @author kremlacek
+ */
+class SyntheticLibrary {
+
+    private static final String IMAGESERVER = "http://imageserver.local";
+    private static final String NDK_PREFIX = "/NDK/2015/per/";
+    private static final String MZK_PREFIX = "/mzk03/stub/";
+
+    final int periodicals;
+    final int volumes;
+    final int issues;
+    final int issuePages;
+    final int monographs;
+    final int monographPages;
+
+    SyntheticLibrary(int periodicals, int volumes, int issues, int issuePages, int monographs, int monographPages) {
+        this.periodicals = periodicals;
+        this.volumes = volumes;
+        this.issues = issues;
+        this.issuePages = issuePages;
+        this.monographs = monographs;
+        this.monographPages = monographPages;
+    }
+
+    String getPeriodical(int t) {
+        return "uuid:per" + t;
+    }
+
+    String getMonograph(int t) {
+        return "uuid:mon" + t;
+    }
+
+    int getPeriodicalPageCount() {
+        return volumes * issues * issuePages;
+    }
+
+    /**
+     * @param uuid object uuid
+     * @return RELS-EXT of the object, null if the object does not exist
+     */
+    String getRelsExt(String uuid) {
+        var id = parse(uuid);
+
+        if (id == null) {
+            return null;
+        }
+
+        var rels = new StringBuilder(512)
+                .append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n")
+                .append("  <rdf:Description rdf:about=\"info:fedora/").append(uuid).append("\">\n");
+
+        String model;
+        String relation = null;
+        int count = 0;
+
+        if (id.monograph) {
+            if (id.page == 0) {
+                model = "monograph";
+                relation = "hasPage";
+                count = monographPages;
+            } else {
+                model = "page";
+            }
+        } else if (id.volume == 0) {
+            model = "periodical";
+            relation = "hasVolume";
+            count = volumes;
+        } else if (id.issue == 0) {
+            model = "periodicalvolume";
+            relation = "hasItem";
+            count = issues;
+        } else if (id.page == 0) {
+            model = "periodicalitem";
+            relation = "hasPage";
+            count = issuePages;
+        } else {
+            model = "page";
+        }
+
+        rels.append("    <hasModel xmlns=\"info:fedora/fedora-system:def/model#\" rdf:resource=\"info:fedora/model:")
+                .append(model).append("\"></hasModel>\n");
+
+        for (int i = 1; i <= count; i++) {
+            var child = uuid + (relation.equals("hasVolume") ? "-v" : relation.equals("hasItem") ? "-i" : "-p") + i;
+
+            rels.append("    <").append(relation).append(" xmlns=\"http://www.nsdl.org/ontologies/relationships#\" rdf:resource=\"info:fedora/")
+                    .append(child).append("\"></").append(relation).append(">\n");
+        }
+
+        if (model.equals("page")) {
+            rels.append("    <tiles-url xmlns=\"http://www.nsdl.org/ontologies/relationships#\">")
+                    .append(IMAGESERVER).append(getImagePath(id, uuid))
+                    .append("</tiles-url>\n");
+        }
+
+        return rels.append("  </rdf:Description>\n</rdf:RDF>\n").toString();
+    }
+
+    /**
+     * @param uuid object uuid
+     * @return BIBLIO_MODS of the object, null if the object does not exist
+     */
+    String getMods(String uuid) {
+        var id = parse(uuid);
+
+        if (id == null) {
+            return null;
+        }
+
+        var mods = new StringBuilder(512)
+                .append("<modsCollection xmlns=\"http://www.loc.gov/mods/v3\">\n")
+                .append("  <mods:mods xmlns:mods=\"http://www.loc.gov/mods/v3\" version=\"3.4\">\n")
+                .append("    <mods:titleInfo><mods:title>Synthetic ").append(id.monograph ? "monograph " : "periodical ")
+                .append(id.title).append("</mods:title></mods:titleInfo>\n")
+                .append("    <mods:identifier type=\"uuid\">").append(uuid.substring("uuid:".length())).append("</mods:identifier>\n");
+
+        if (!id.monograph && id.volume != 0 && id.issue == 0) {
+            mods.append("    <mods:part type=\"volume\"><mods:detail type=\"volume\"><mods:number>").append(id.volume)
+                    .append("</mods:number></mods:detail><mods:date>").append(1900 + id.volume).append("</mods:date></mods:part>\n");
+        } else if (!id.monograph && id.issue != 0 && id.page == 0) {
+            mods.append("    <mods:part type=\"issue\"><mods:detail type=\"issue\"><mods:number>").append(id.issue)
+                    .append("</mods:number></mods:detail><mods:date>").append(1900 + id.volume).append("</mods:date></mods:part>\n");
+        }
+
+        return mods.append("  </mods:mods>\n</modsCollection>\n").toString();
+    }
+
+    /**
+     * Writes images of all pages, all images share the same random content
+     *
+     * @param basePathMzk BASE_PATH_MZK
+     * @param basePathNdk BASE_PATH_NDK
+     * @param imageSize size of every image in bytes
+     * @return count of written images
+     * @throws IOException when image cannot be written
+     */
+    int createImages(Path basePathMzk, Path basePathNdk, int imageSize) throws IOException {
+        var data = new byte[imageSize];
+        new Random(42).nextBytes(data);
+
+        var images = new ArrayList<Path>();
+
+        for (int t = 1; t <= periodicals; t++) {
+            for (int v = 1; v <= volumes; v++) {
+                for (int i = 1; i <= issues; i++) {
+                    for (int p = 1; p <= issuePages; p++) {
+                        var uuid = getPeriodical(t) + "-v" + v + "-i" + i + "-p" + p;
+                        images.add(basePathNdk.resolve(getImagePath(parse(uuid), uuid).replace("NDK", "ndk03").substring(1) + ".jp2"));
+                    }
+                }
+            }
+        }
+
+        for (int t = 1; t <= monographs; t++) {
+            for (int p = 1; p <= monographPages; p++) {
+                var uuid = getMonograph(t) + "-p" + p;
+                images.add(basePathMzk.resolve(getImagePath(parse(uuid), uuid).substring(1) + ".jp2"));
+            }
+        }
+
+        for (var image : images) {
+            if (Files.isRegularFile(image) && Files.size(image) == imageSize) {
+                continue;
+            }
+
+            Files.createDirectories(image.getParent());
+            Files.write(image, data);
+        }
+
+        return images.size();
+    }
+
+    private static String getImagePath(Id id, String uuid) {
+        var pageId = uuid.substring("uuid:".length());
+
+        if (id.monograph) {
+            return MZK_PREFIX + "mon" + id.title + "/" + pageId;
+        }
+
+        return NDK_PREFIX + "per" + id.title + "/" + pageId;
+    }
+
+    /**
+     * @return parsed uuid, null if uuid does not belong to existing object
+     */
+    private Id parse(String uuid) {
+        if (!uuid.startsWith("uuid:per") && !uuid.startsWith("uuid:mon")) {
+            return null;
+        }
+
+        var id = new Id();
+        id.monograph = uuid.startsWith("uuid:mon");
+
+        List<String> parts = List.of(uuid.substring("uuid:per".length()).split("-"));
+
+        try {
+            id.title = Integer.parseInt(parts.get(0));
+
+            for (var part : parts.subList(1, parts.size())) {
+                int value = Integer.parseInt(part.substring(1));
+
+                switch (part.charAt(0)) {
+                    case 'v': id.volume = value; break;
+                    case 'i': id.issue = value; break;
+                    case 'p': id.page = value; break;
+                    default: return null;
+                }
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+
+        boolean exists = id.monograph
+                ? id.title >= 1 && id.title <= monographs && id.volume == 0 && id.issue == 0 && id.page <= monographPages
+                : id.title >= 1 && id.title <= periodicals && id.volume <= volumes && id.issue <= issues && id.page <= issuePages
+                        && (id.issue == 0 || id.volume != 0) && (id.page == 0 || id.issue != 0);
+
+        return exists ? id : null;
+    }
+
+    private static class Id {
+        private boolean monograph;
+        private int title;
+        private int volume;
+        private int issue;
+        private int page;
+    }
+}
@@ -1,13 +1,20 @@
 package cz.mzk.holly;
 
+import cz.mzk.holly.extractor.BatchScheduler;
+import cz.mzk.holly.extractor.ImageExtractor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.boot.web.servlet.support.SpringBootServletInitializer;
+import org.springframework.context.event.EventListener;
+
+import java.util.logging.Logger;
 
 @SpringBootApplication
 public class Application extends SpringBootServletInitializer {
 
+    private static final Logger logger = Logger.getLogger(Application.class.getName());
 
     protected SpringApplicationBuilder configure(SpringApplicationBuilder application) {
         return application.sources(Application.class);
@@ -16,4 +23,16 @@ public class Application extends SpringBootServletInitializer {
     public static void main(String[] args) {
         SpringApplication.run(Application.class, args);
     }
+
+    /**
+     * Resubmits batches interrupted by previous shutdown
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recoverBatches() {
+        try {
+            BatchScheduler.getInstance().recover(new ImageExtractor());
+        } catch (IllegalStateException e) {
+            logger.warning("Batches were not recovered. Reason: " + e.getMessage());
+        }
+    }
 }
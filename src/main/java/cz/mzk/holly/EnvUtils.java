@@ -0,0 +1,85 @@
+package cz.mzk.holly;
+
+import java.util.logging.Logger;
+
+/**
+ * @author kremlacek
+ */
+public class EnvUtils {
+
+    private static final Logger logger = Logger.getLogger(EnvUtils.class.getName());
+
+    /**
+     * Reads string value of system environment variable
+     *
+     * @param name variable name
+     * @param defaultValue value used when variable is not set or is empty
+     * @return variable value or defaultValue
+     */
+    public static String getString(String name, String defaultValue) {
+        var value = System.getenv(name);
+
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+
+        return value;
+    }
+
+    /**
+     * Reads integer value of system environment variable
+     *
+     * @param name variable name
+     * @param defaultValue value used when variable is not set, is not a valid number or is out of int range
+     * @return variable value or defaultValue
+     */
+    public static int getInt(String name, int defaultValue) {
+        long value = getLong(name, defaultValue);
+
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            logger.warning("Value of " + name + " is out of range: " + value + ", using default " + defaultValue);
+            return defaultValue;
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Reads long value of system environment variable
+     *
+     * @param name variable name
+     * @param defaultValue value used when variable is not set or is not a valid number
+     * @return variable value or defaultValue
+     */
+    public static long getLong(String name, long defaultValue) {
+        var value = getString(name, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid value of " + name + ": " + value + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads boolean value of system environment variable
+     *
+     * @param name variable name
+     * @param defaultValue value used when variable is not set
+     * @return true if variable is set to "true" (case insensitive), defaultValue if not set, false otherwise
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        var value = getString(name, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,75 @@
+package cz.mzk.holly;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Meters of the application. Meters are registered into the global registry, which is exported by Spring Boot
+ * Actuator at /actuator/prometheus. Meters are registered once and kept by their users, so that recording
+ * stays cheap on hot paths.
+ *
+ * @author kremlacek
+ */
+public class MetricsUtils {
+
+    private MetricsUtils() {
+    }
+
+    /**
+     * @param name meter name, dot separated
+     * @param description meter description
+     * @param tags tag names and values
+     * @return timer with percentile histogram
+     */
+    public static Timer timer(String name, String description, String... tags) {
+        return Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * @param name meter name, dot separated
+     * @param description meter description
+     * @param tags tag names and values
+     * @return counter
+     */
+    public static Counter counter(String name, String description, String... tags) {
+        return Counter.builder(name)
+                .description(description)
+                .tags(tags)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * @param name meter name, dot separated
+     * @param description meter description
+     * @return counter of bytes
+     */
+    public static Counter byteCounter(String name, String description) {
+        return Counter.builder(name)
+                .description(description)
+                .baseUnit("bytes")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Registers gauge sampled when metrics are scraped
+     *
+     * @param name meter name, dot separated
+     * @param description meter description
+     * @param object object the value is read from, held strongly
+     * @param value function reading the value
+     * @param <T> type of the object
+     */
+    public static <T> void gauge(String name, String description, T object, ToDoubleFunction<T> value) {
+        Gauge.builder(name, object, value)
+                .description(description)
+                .strongReference(true)
+                .register(Metrics.globalRegistry);
+    }
+}
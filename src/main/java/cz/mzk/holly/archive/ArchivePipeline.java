@@ -0,0 +1,377 @@
+package cz.mzk.holly.archive;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.MetricsUtils;
+import io.micrometer.core.instrument.Timer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Writes pages into zip archive. Pages are prepared (converted) by a pool of workers running ahead of single
+ * writer, which stores them in the original order. At most CONVERT_AHEAD prepared pages wait for the writer,
+ * which caps disk space used by converted files, or count of running conversions when their output is streamed.
+ *
+ * @author kremlacek
+ */
+public class ArchivePipeline {
+
+    private static final Logger logger = Logger.getLogger(ArchivePipeline.class.getName());
+
+    private static final int CONVERT_THREADS = Math.max(1,
+            EnvUtils.getInt("CONVERT_THREADS", Runtime.getRuntime().availableProcessors()));
+    private static final int CONVERT_AHEAD = Math.max(1, EnvUtils.getInt("CONVERT_AHEAD", 2 * CONVERT_THREADS));
+
+    private static final ExecutorService convertPool = Executors.newFixedThreadPool(CONVERT_THREADS, r -> {
+        var t = new Thread(r, "page-converter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    //writer waiting for pages means conversion is the bottleneck, writer not waiting means archive writing is
+    private static final Timer PAGE_WAIT_TIMER = MetricsUtils.timer("holly.archive.page.wait", "Time archive writer waits for converted page");
+
+    /**
+     * Pages which are still being found, e.g. pages of batch being crawled. Its hasNext may wait for the next page.
+     */
+    public interface PageStream extends Iterator<String> {
+        /**
+         * @return true if hasNext returns without waiting
+         */
+        boolean isReady();
+    }
+
+    /**
+     * Writes pages into zip archive in their order, converting them into requested format when needed.
+     * Pages prepared ahead are written while {@link PageStream} waits for following pages.
+     *
+     * @param pages absolute paths of page images
+     * @param format requested format (file extension)
+     * @param writer archive writer, it is aborted when writing fails
+     * @throws IOException when page cannot be read or archive written
+     */
+    public static void write(Iterator<String> pages, String format, ArchiveWriter writer) throws IOException {
+        var window = new ArrayDeque<Slot>();
+        int chunkSize = PageConverter.getBatchSize();
+        //in batched mode every worker gets at least one chunk
+        int ahead = Math.max(CONVERT_AHEAD, chunkSize * CONVERT_THREADS);
+
+        try {
+            while (!window.isEmpty() || pages.hasNext()) {
+                //keep workers busy while writer is copying, new chunk is submitted once whole chunk fits
+                while (window.size() + chunkSize <= ahead && (window.isEmpty() || isReady(pages)) && pages.hasNext()) {
+                    var chunk = new ArrayList<Slot>(chunkSize);
+
+                    //chunk of stream is submitted early rather than waiting for pages
+                    while (chunk.size() < chunkSize && (chunk.isEmpty() || isReady(pages)) && pages.hasNext()) {
+                        chunk.add(new Slot(pages.next()));
+                    }
+
+                    window.addAll(chunk);
+
+                    var task = convertPool.submit(() -> prepareChunk(chunk, format));
+                    chunk.forEach(slot -> slot.setTask(task));
+                }
+
+                var slot = window.poll();
+                long waitStart = System.nanoTime();
+                var entry = slot.await();
+                PAGE_WAIT_TIMER.record(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+
+                try {
+                    writer.write(entry);
+                } finally {
+                    entry.release();
+                }
+            }
+
+            if (DerivativeCache.getInstance() != null) {
+                logger.info("Pages written. " + DerivativeCache.getInstance());
+            }
+        } catch (IOException | RuntimeException e) {
+            //archive of missing pages must not look complete
+            writer.abort();
+            throw e;
+        } finally {
+            //writing failed, drop pages prepared in advance
+            for (var slot : window) {
+                slot.abandon();
+            }
+        }
+    }
+
+    private static boolean isReady(Iterator<String> pages) {
+        return !(pages instanceof PageStream) || ((PageStream) pages).isReady();
+    }
+
+    private static void prepareChunk(List<Slot> chunk, String format) {
+        try {
+            if (!PageConverter.isBatched()) {
+                var slot = chunk.get(0);
+
+                if (!slot.isAbandoned()) {
+                    slot.set(prepare(slot.page, format));
+                }
+            } else {
+                prepareBatch(chunk, format);
+            }
+        } catch (IOException | RuntimeException e) {
+            //slots already prepared are not affected
+            for (var slot : chunk) {
+                slot.fail(e);
+            }
+        } finally {
+            //writer must not wait for slot which was not prepared, e.g. due to an error
+            for (var slot : chunk) {
+                slot.fail(new IllegalStateException("Page was not prepared: " + slot.page));
+            }
+        }
+    }
+
+    private static PreparedEntry prepare(String page, String format) throws IOException {
+        var srcFile = getSourceFile(page);
+
+        if (page.toLowerCase().endsWith(format)) {
+            return new PreparedEntry(srcFile.getName(), srcFile, false);
+        }
+
+        var name = getConvertedName(srcFile, format);
+        var cache = DerivativeCache.getInstance();
+
+        if (cache != null) {
+            return prepareCached(cache, srcFile, name, format);
+        }
+
+        if (PageConverter.isStreamed()) {
+            //conversion runs ahead and blocks once pipe buffer is full, writer streams its output into the archive
+            return new PreparedEntry(name, PageConverter.startStreamed(srcFile, name));
+        }
+
+        var convertedFile = File.createTempFile("holly_", "_" + name);
+
+        try {
+            PageConverter.convertFile(srcFile, convertedFile);
+
+            return new PreparedEntry(name, convertedFile, true);
+        } catch (IOException | RuntimeException e) {
+            convertedFile.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Prepares chunk of pages, pages requiring conversion are converted by single invocation of batch application
+     */
+    private static void prepareBatch(List<Slot> chunk, String format) throws IOException {
+        var cache = DerivativeCache.getInstance();
+        var jobs = new ArrayList<BatchJob>();
+
+        for (var slot : chunk) {
+            if (slot.isAbandoned()) {
+                continue;
+            }
+
+            try {
+                var srcFile = getSourceFile(slot.page);
+
+                if (slot.page.toLowerCase().endsWith(format)) {
+                    slot.set(new PreparedEntry(srcFile.getName(), srcFile, false));
+                    continue;
+                }
+
+                var name = getConvertedName(srcFile, format);
+                var derivative = cache == null ? null : cache.acquire(srcFile, format);
+
+                if (derivative != null) {
+                    slot.set(createCachedEntry(cache, derivative, name));
+                    continue;
+                }
+
+                var convertedFile = cache == null ? File.createTempFile("holly_", "_" + name) : cache.createTempFile(name);
+                jobs.add(new BatchJob(slot, srcFile, convertedFile, name));
+            } catch (IOException | RuntimeException e) {
+                slot.fail(e);
+            }
+        }
+
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        Exception failure = null;
+
+        try {
+            PageConverter.convertBatch(
+                    jobs.stream().map(job -> job.srcFile).collect(Collectors.toList()),
+                    jobs.stream().map(job -> job.convertedFile).collect(Collectors.toList()),
+                    i -> jobs.get(i).complete(cache, format));
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+
+        for (var job : jobs) {
+            if (!job.completed) {
+                job.convertedFile.delete();
+                job.slot.fail(failure != null ? failure : new IOException("Page was not converted: " + job.srcFile));
+            }
+        }
+    }
+
+    private static File getSourceFile(String page) {
+        var srcFile = new File(page);
+
+        if (!srcFile.exists()) {
+            throw new IllegalStateException("Source file does not exist. File: " + page);
+        }
+
+        return srcFile;
+    }
+
+    private static String getConvertedName(File srcFile, String format) {
+        var name = srcFile.getName();
+
+        return name.substring(0, name.lastIndexOf(".")) + "." + format;
+    }
+
+    private static PreparedEntry createCachedEntry(DerivativeCache cache, File derivative, String name) throws IOException {
+        try {
+            return new PreparedEntry(name, derivative, cache);
+        } catch (IOException | RuntimeException e) {
+            cache.release(derivative);
+            throw e;
+        }
+    }
+
+    /**
+     * Uses converted page from derivative cache, missing page is converted into a file and published to the cache
+     */
+    private static PreparedEntry prepareCached(DerivativeCache cache, File srcFile, String name, String format) throws IOException {
+        var derivative = cache.acquire(srcFile, format);
+
+        if (derivative == null) {
+            var convertedFile = cache.createTempFile(name);
+
+            try {
+                PageConverter.convertFile(srcFile, convertedFile);
+                derivative = cache.publish(srcFile, format, convertedFile);
+            } catch (IOException | RuntimeException e) {
+                convertedFile.delete();
+                throw e;
+            }
+        }
+
+        return createCachedEntry(cache, derivative, name);
+    }
+
+    /**
+     * Page being converted by batch application
+     */
+    private static class BatchJob {
+        private final Slot slot;
+        private final File srcFile;
+        private final File convertedFile;
+        private final String name;
+        private boolean completed = false;
+
+        private BatchJob(Slot slot, File srcFile, File convertedFile, String name) {
+            this.slot = slot;
+            this.srcFile = srcFile;
+            this.convertedFile = convertedFile;
+            this.name = name;
+        }
+
+        void complete(DerivativeCache cache, String format) {
+            completed = true;
+
+            try {
+                if (cache == null) {
+                    slot.set(new PreparedEntry(name, convertedFile, true));
+                } else {
+                    slot.set(createCachedEntry(cache, cache.publish(srcFile, format, convertedFile), name));
+                }
+            } catch (IOException | RuntimeException e) {
+                convertedFile.delete();
+                slot.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Hand-over of prepared entry between worker and writer, entry of abandoned slot is released by whichever
+     * side comes last
+     */
+    private static class Slot {
+        private final String page;
+        private final CompletableFuture<PreparedEntry> result = new CompletableFuture<>();
+        private Future<?> task;
+        private boolean abandoned = false;
+
+        Slot(String page) {
+            this.page = page;
+        }
+
+        synchronized void setTask(Future<?> task) {
+            this.task = task;
+
+            if (abandoned) {
+                task.cancel(false);
+            }
+        }
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        synchronized void set(PreparedEntry entry) {
+            if (abandoned || !result.complete(entry)) {
+                entry.release();
+            }
+        }
+
+        void fail(Throwable e) {
+            result.completeExceptionally(e);
+        }
+
+        PreparedEntry await() throws IOException {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for page conversion.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        synchronized void abandon() {
+            abandoned = true;
+
+            if (task != null) {
+                task.cancel(false);
+            }
+
+            if (result.isDone() && !result.isCompletedExceptionally()) {
+                result.join().release();
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package cz.mzk.holly.archive;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.MetricsUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Writes entries into zip archive. Entry data are read through FileChannel into large buffer and archive is written
+ * through buffered channel, so that per entry syscall overhead stays low even for multi-GB archives.
+ *
+ * @author kremlacek
+ */
+public class ArchiveWriter implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(ArchiveWriter.class.getName());
+
+    private static final int BUFFER_SIZE = Math.max(8192, EnvUtils.getInt("ARCHIVE_BUFFER_SIZE", 1024 * 1024));
+
+    /**
+     * What should be synced to disk when archive is finished
+     */
+    enum FsyncPolicy {
+        NONE, DATA, FULL
+    }
+
+    private static final FsyncPolicy FSYNC_POLICY = getFsyncPolicy();
+
+    //throughput is rate of the byte counter
+    private static final Counter BYTES_WRITTEN = MetricsUtils.byteCounter("holly.archive.written", "Bytes written into archives");
+    private static final Timer ENTRY_WRITE_TIMER = MetricsUtils.timer("holly.archive.entry.write", "Time of writing single entry into archive");
+    private static final Counter STORED_ENTRIES = MetricsUtils.counter("holly.archive.entries", "Entries written into archives", "method", "stored");
+    private static final Counter DEFLATED_ENTRIES = MetricsUtils.counter("holly.archive.entries", "Entries written into archives", "method", "deflated");
+    private static final Counter STREAMED_ENTRIES = MetricsUtils.counter("holly.archive.entries", "Entries written into archives", "method", "streamed");
+
+    /**
+     * Notified after every entry written into archive
+     */
+    public interface ProgressListener {
+        /**
+         * @param name name of the written entry
+         * @param bytesWritten size of the archive written so far
+         */
+        void entryWritten(String name, long bytesWritten);
+    }
+
+    private final FileChannel channel;
+    private final boolean ownsOutput;
+    private final CountingOutputStream counter;
+    private final ArchiveOutputStream zos;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private ProgressListener listener;
+
+    //failed archive is left without central directory, so that it cannot be mistaken for a complete one
+    private boolean failed = false;
+
+    private ArchiveWriter(FileChannel channel, OutputStream out, boolean ownsOutput) {
+        this.channel = channel;
+        this.ownsOutput = ownsOutput;
+        //supplied stream is shielded, so that the zip stream and its deflater can always be closed
+        var target = ownsOutput ? out : new CloseShieldOutputStream(out);
+        this.counter = new CountingOutputStream(new BufferedOutputStream(target, BUFFER_SIZE));
+        this.zos = new ArchiveOutputStream(counter);
+    }
+
+    /**
+     * Creates archive file, existing file is overwritten
+     *
+     * @param zipFile archive file
+     * @return writer of the archive
+     * @throws IOException when file cannot be created
+     */
+    public static ArchiveWriter create(File zipFile) throws IOException {
+        var channel = FileChannel.open(zipFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        return new ArchiveWriter(channel, Channels.newOutputStream(channel), true);
+    }
+
+    /**
+     * Writes archive into supplied stream, e.g. HTTP response. Stream is only flushed when the writer is closed.
+     *
+     * @param out target stream
+     * @return writer of the archive
+     */
+    public static ArchiveWriter create(OutputStream out) {
+        return new ArchiveWriter(null, out, false);
+    }
+
+    /**
+     * @param listener listener notified after every written entry, null to remove
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Marks the archive as failed, close then leaves it truncated instead of finishing it. Called when writing
+     * of the archive fails outside of the writer, e.g. when page cannot be prepared.
+     */
+    public void abort() {
+        failed = true;
+    }
+
+    /**
+     * @return count of archive bytes written so far, including data buffered before being written to the target
+     */
+    public long getBytesWritten() {
+        return counter.getByteCount();
+    }
+
+    /**
+     * Writes file as archive entry named by the file name
+     *
+     * @param file file to be written
+     * @throws IOException when file cannot be read or archive written
+     */
+    public void writeFile(File file) throws IOException {
+        write(new PreparedEntry(file.getName(), file, false));
+    }
+
+    /**
+     * Writes prepared entry into archive
+     *
+     * @param entry entry to be written
+     * @throws IOException when entry data cannot be read or archive written
+     */
+    void write(PreparedEntry entry) throws IOException {
+        try {
+            writeEntry(entry);
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    private void writeEntry(PreparedEntry entry) throws IOException {
+        var zipEntry = new ZipEntry(entry.getName());
+        long start = System.nanoTime();
+        long bytesBefore = getBytesWritten();
+
+        if (entry.isStreamed()) {
+            writeStreamed(zipEntry, entry);
+            STREAMED_ENTRIES.increment();
+        } else {
+            writeData(zipEntry, entry);
+            (entry.isStored() ? STORED_ENTRIES : DEFLATED_ENTRIES).increment();
+        }
+
+        long bytesWritten = getBytesWritten();
+
+        ENTRY_WRITE_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        BYTES_WRITTEN.increment(bytesWritten - bytesBefore);
+
+        if (listener != null) {
+            listener.entryWritten(entry.getName(), bytesWritten);
+        }
+    }
+
+    private void writeData(ZipEntry zipEntry, PreparedEntry entry) throws IOException {
+        if (entry.isStored()) {
+            //already compressed format, crc and size were computed while preparing the entry
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(entry.getSize());
+            zipEntry.setCompressedSize(entry.getSize());
+            zipEntry.setCrc(entry.getCrc());
+        } else {
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+            zos.setLevel(EntryCompression.getDeflateLevel(entry.getName()));
+        }
+
+        try (var in = FileChannel.open(entry.getFile().toPath(), StandardOpenOption.READ)) {
+            // begin writing a new ZIP entry, positions the stream to the start of the entry data
+            // sizes over 4 GB and more than 65535 entries are written with Zip64 extensions by ZipOutputStream
+            zos.putNextEntry(zipEntry);
+
+            //ZipOutputStream has to see the data to maintain crc and sizes, therefore data are copied through heap buffer
+            var byteBuffer = ByteBuffer.wrap(buffer);
+            int length;
+            while ((length = in.read(byteBuffer)) >= 0) {
+                if (length > 0) {
+                    zos.write(buffer, 0, length);
+                }
+                byteBuffer.clear();
+            }
+
+            zos.closeEntry();
+        }
+    }
+
+    /**
+     * Copies output of running conversion into the entry. Crc is not known before the data are written, therefore
+     * formats which would be stored are written as deflated without compression.
+     */
+    private void writeStreamed(ZipEntry zipEntry, PreparedEntry entry) throws IOException {
+        zipEntry.setMethod(ZipEntry.DEFLATED);
+        zos.setLevel(EntryCompression.isStored(entry.getName())
+                ? Deflater.NO_COMPRESSION
+                : EntryCompression.getDeflateLevel(entry.getName()));
+
+        zos.putNextEntry(zipEntry);
+
+        try (var in = entry.getConversion().openOutput()) {
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                zos.write(buffer, 0, length);
+            }
+        }
+
+        //incomplete output of failed conversion must not end up in the archive, failed entry fails the whole archive
+        entry.getConversion().finish();
+
+        zos.closeEntry();
+    }
+
+    /**
+     * Finishes archive, syncs it to disk according to ARCHIVE_FSYNC and closes it. Failed archive is not finished,
+     * written entries are not followed by central directory and supplied stream is not flushed.
+     *
+     * @throws IOException when archive cannot be finished
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!failed) {
+                zos.finish();
+                zos.flush();
+
+                if (channel != null && FSYNC_POLICY != FsyncPolicy.NONE) {
+                    channel.force(FSYNC_POLICY == FsyncPolicy.FULL);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            if (failed) {
+                //closing the zip stream would write central directory
+                zos.abandon();
+
+                if (ownsOutput) {
+                    channel.close();
+                }
+            } else {
+                zos.close();
+            }
+        }
+    }
+
+    private static FsyncPolicy getFsyncPolicy() {
+        var value = EnvUtils.getString("ARCHIVE_FSYNC", "none");
+
+        try {
+            return FsyncPolicy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid value of ARCHIVE_FSYNC: " + value + ", using none");
+            return FsyncPolicy.NONE;
+        }
+    }
+
+    /**
+     * Zip stream whose deflater can be released without finishing the archive
+     */
+    private static class ArchiveOutputStream extends ZipOutputStream {
+
+        private ArchiveOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /**
+         * Releases native memory of the deflater, the stream cannot be used afterwards
+         */
+        private void abandon() {
+            def.end();
+        }
+    }
+}
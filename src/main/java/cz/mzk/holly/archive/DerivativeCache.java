@@ -0,0 +1,286 @@
+package cz.mzk.holly.archive;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * On-disk cache of converted pages stored in DERIVATIVE_CACHE_PATH. Derivatives are keyed by source path,
+ * its modification time and size and target format, so that modified source images are converted again.
+ *
+ * New derivatives are converted into temporary directory within the cache and published by atomic move.
+ * Least recently used derivatives are removed once total size exceeds DERIVATIVE_CACHE_MAX_BYTES, derivatives
+ * being written into archive are never removed. Order of use is not persisted, after restart derivatives are
+ * ordered by their publish time.
+ *
+ * @author kremlacek
+ */
+public class DerivativeCache {
+
+    private static final Logger logger = Logger.getLogger(DerivativeCache.class.getName());
+
+    private static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+    private static final String TEMP_DIRECTORY = "tmp";
+
+    private final Path directory;
+    private final Path tempDirectory;
+    private final long maxSize;
+
+    //access ordered derivative sizes keyed by file name, guarded by this
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> pinned = new HashMap<>();
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Creates cache in specified directory, derivatives already present are loaded
+     *
+     * @param directory cache directory
+     * @param maxSize maximum total size of derivatives in bytes
+     * @throws IOException when directory cannot be created or listed
+     */
+    public DerivativeCache(Path directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.tempDirectory = directory.resolve(TEMP_DIRECTORY);
+        this.maxSize = maxSize;
+
+        Files.createDirectories(tempDirectory);
+
+        //leftovers of conversions interrupted by restart
+        try (var files = Files.list(tempDirectory)) {
+            for (var file : files.collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        try (var files = Files.list(directory)) {
+            var derivatives = files
+                    .map(Path::toFile)
+                    .filter(File::isFile)
+                    .sorted(Comparator.comparingLong(File::lastModified))
+                    .collect(Collectors.toList());
+
+            for (var derivative : derivatives) {
+                entries.put(derivative.getName(), derivative.length());
+                size += derivative.length();
+            }
+        }
+
+        evict();
+    }
+
+    /**
+     * Returns cache configured by DERIVATIVE_CACHE_PATH and DERIVATIVE_CACHE_MAX_BYTES
+     *
+     * @return application wide cache, null if cache is not configured or cannot be created
+     */
+    public static DerivativeCache getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Looks up derivative of the source image, found derivative is pinned until released
+     *
+     * @param srcFile source image
+     * @param format target format
+     * @return cached derivative or null if not present
+     */
+    synchronized File acquire(File srcFile, String format) {
+        var key = getKey(srcFile, format);
+
+        if (entries.get(key) == null) {
+            misses++;
+            return null;
+        }
+
+        var file = directory.resolve(key).toFile();
+
+        if (!file.isFile()) {
+            //removed from outside of the application
+            size -= entries.remove(key);
+            misses++;
+            return null;
+        }
+
+        hits++;
+        pin(key);
+
+        return file;
+    }
+
+    /**
+     * @param name name of converted image
+     * @return new temporary file on the same filesystem as the cache
+     * @throws IOException when file cannot be created
+     */
+    File createTempFile(String name) throws IOException {
+        return Files.createTempFile(tempDirectory, "holly_", "_" + name).toFile();
+    }
+
+    /**
+     * Moves converted image into the cache, published derivative is pinned until released
+     *
+     * @param srcFile source image
+     * @param format target format
+     * @param convertedFile converted image created by createTempFile
+     * @return published derivative
+     * @throws IOException when derivative cannot be moved
+     */
+    File publish(File srcFile, String format, File convertedFile) throws IOException {
+        var key = getKey(srcFile, format);
+        var target = directory.resolve(key);
+
+        try {
+            Files.move(convertedFile.toPath(), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(convertedFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        synchronized (this) {
+            var previous = entries.put(key, target.toFile().length());
+
+            if (previous != null) {
+                size -= previous;
+            }
+
+            size += entries.get(key);
+            pin(key);
+            evict();
+        }
+
+        return target.toFile();
+    }
+
+    /**
+     * Releases derivative returned by acquire or publish, it can be evicted afterwards
+     *
+     * @param derivative cached derivative
+     */
+    synchronized void release(File derivative) {
+        var key = derivative.getName();
+        var count = pinned.get(key);
+
+        if (count == null) {
+            return;
+        }
+
+        if (count <= 1) {
+            pinned.remove(key);
+        } else {
+            pinned.put(key, count - 1);
+        }
+
+        evict();
+    }
+
+    private void pin(String key) {
+        pinned.merge(key, 1, Integer::sum);
+    }
+
+    private void evict() {
+        var it = entries.entrySet().iterator();
+
+        while (size > maxSize && it.hasNext()) {
+            var eldest = it.next();
+
+            if (pinned.containsKey(eldest.getKey())) {
+                continue;
+            }
+
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                logger.warning("Could not remove cached derivative: " + eldest.getKey());
+                continue;
+            }
+
+            size -= eldest.getValue();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static String getKey(File srcFile, String format) {
+        var source = srcFile.getAbsolutePath() + "|" + srcFile.lastModified() + "|" + srcFile.length() + "|" + format;
+
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            var sb = new StringBuilder(digest.length * 2 + format.length() + 1);
+
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+
+            return sb.append('.').append(format).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+
+        return "DerivativeCache{derivatives=" + entries.size()
+                + ", used=" + FileUtils.humanReadableByteCount(size, false)
+                + " of " + FileUtils.humanReadableByteCount(maxSize, false)
+                + ", hits=" + hits + ", misses=" + misses
+                + ", hitRatio=" + (lookups == 0 ? "-" : String.format("%.1f%%", 100.0 * hits / lookups))
+                + ", evictions=" + evictions + "}";
+    }
+
+    private static class InstanceHolder {
+        private static final DerivativeCache INSTANCE = create();
+
+        private static DerivativeCache create() {
+            var path = EnvUtils.getString("DERIVATIVE_CACHE_PATH", null);
+
+            if (path == null || path.isEmpty()) {
+                return null;
+            }
+
+            try {
+                var cache = new DerivativeCache(Path.of(path), EnvUtils.getLong("DERIVATIVE_CACHE_MAX_BYTES", DEFAULT_MAX_SIZE));
+
+                if (PageConverter.isStreamed()) {
+                    //streamed output would have to be copied into the cache anyway
+                    logger.warning("CONVERT_MODE is ignored while derivative cache is enabled, missing pages are converted into files.");
+                }
+
+                return cache;
+            } catch (IOException e) {
+                logger.severe("Could not open derivative cache in " + path + ", pages will be converted on every export. Reason: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package cz.mzk.holly.archive;
+
+import cz.mzk.holly.EnvUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Selects compression of archive entries by their format. Already compressed formats (jp2, jpg) are stored
+ * without compression, which requires CRC-32 and size to be known before the entry is written.
+ *
+ * @author kremlacek
+ */
+class EntryCompression {
+
+    private static final Set<String> STORED_FORMATS = new HashSet<>(Arrays.asList(
+            EnvUtils.getString("ZIP_STORED_FORMATS", "jp2,jpg,jpeg").toLowerCase().split("\\s*,\\s*")));
+
+    private static final int TIFF_DEFLATE_LEVEL = EnvUtils.getInt("ZIP_TIFF_DEFLATE_LEVEL", Deflater.DEFAULT_COMPRESSION);
+    private static final int CRC_CACHE_SIZE = EnvUtils.getInt("ZIP_CRC_CACHE_ENTRIES", 100000);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //crc of source images keyed by path, modification time and size, guarded by itself
+    private static final Map<String, Long> crcCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CRC_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * @param name entry name
+     * @return true if entry should be stored without compression
+     */
+    static boolean isStored(String name) {
+        return STORED_FORMATS.contains(getExtension(name));
+    }
+
+    /**
+     * @param name entry name
+     * @return deflate level used for compressed entry
+     */
+    static int getDeflateLevel(String name) {
+        var extension = getExtension(name);
+
+        if (extension.equals("tif") || extension.equals("tiff")) {
+            return TIFF_DEFLATE_LEVEL;
+        }
+
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * Computes CRC-32 of the file in a streaming pass
+     *
+     * @param file file to be checked
+     * @param cacheable true if file is persistent and its crc can be reused while it is not modified
+     * @return crc value
+     * @throws IOException when file cannot be read
+     */
+    static long computeCrc(File file, boolean cacheable) throws IOException {
+        String key = null;
+
+        if (cacheable) {
+            key = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length();
+
+            synchronized (crcCache) {
+                var cached = crcCache.get(key);
+
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+
+        var crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        try (var fis = new FileInputStream(file)) {
+            int length;
+            while ((length = fis.read(buffer)) > 0) {
+                crc.update(buffer, 0, length);
+            }
+        }
+
+        if (key != null) {
+            synchronized (crcCache) {
+                crcCache.put(key, crc.getValue());
+            }
+        }
+
+        return crc.getValue();
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+    }
+}
@@ -0,0 +1,308 @@
+package cz.mzk.holly.archive;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.MetricsUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Converts images between formats using external application set in JP2_TO_JPG_CONVERT
+ *
+ * @author kremlacek
+ */
+public class PageConverter {
+
+    private static final String JP2_TO_JPG_CONVERT = System.getenv("JP2_TO_JPG_CONVERT");
+    private static final String JP2_TO_JPG_CONVERT_BATCH = System.getenv("JP2_TO_JPG_CONVERT_BATCH");
+    private static final int BATCH_SIZE = EnvUtils.getInt("CONVERT_BATCH_SIZE", 16);
+    private static final Logger logger = Logger.getLogger(PageConverter.class.getName());
+
+    /**
+     * Where conversion application writes converted image
+     */
+    enum Mode {
+        /** temporary file read back into archive */
+        FILE,
+        /** standard output of the application */
+        STDOUT,
+        /** named pipe, for applications requiring output path */
+        PIPE
+    }
+
+    private static final Mode MODE = getMode();
+    private static final String STDOUT_ARG = EnvUtils.getString("CONVERT_STDOUT_ARG", "-");
+
+    private static final AtomicLong pipeCounter = new AtomicLong(0);
+    private static Path pipeDirectory;
+
+    private static final ConversionMeters FILE_METERS = new ConversionMeters("file");
+    private static final ConversionMeters BATCH_METERS = new ConversionMeters("batch");
+    static final ConversionMeters STREAMED_METERS = new ConversionMeters("streamed");
+
+    /**
+     * @return true if converted images are streamed into archive without temporary files
+     */
+    static boolean isStreamed() {
+        return MODE != Mode.FILE;
+    }
+
+    /**
+     * @return true if several pages are converted by single invocation of JP2_TO_JPG_CONVERT_BATCH
+     */
+    static boolean isBatched() {
+        return JP2_TO_JPG_CONVERT_BATCH != null && !JP2_TO_JPG_CONVERT_BATCH.isEmpty() && BATCH_SIZE > 1 && !isStreamed();
+    }
+
+    /**
+     * @return maximum count of pages converted by single invocation of batch application
+     */
+    static int getBatchSize() {
+        return isBatched() ? BATCH_SIZE : 1;
+    }
+
+    /**
+     * Converts source file into converted file, format is determined by the conversion application
+     *
+     * @param srcFile source image
+     * @param convertedFile target image
+     * @throws IOException when conversion application cannot be started
+     */
+    public static void convertFile(File srcFile, File convertedFile) throws IOException {
+        long start = System.nanoTime();
+        var convertProcess = new ProcessBuilder(getCommand(srcFile, convertedFile.toString()))
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        try {
+            int i = convertProcess.waitFor();
+
+            if (i != 0) {
+                FILE_METERS.failed(start);
+                throw new IllegalStateException("Convert process failed with non zero return code.");
+            }
+
+            FILE_METERS.converted(start, 1);
+            logger.fine(() -> "Converted 1 page in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (InterruptedException e) {
+            convertProcess.destroy();
+            FILE_METERS.failed(start);
+            logger.severe("Convert process failed. Reason: " + e.getMessage());
+            throw new IllegalStateException("Convert process failed. Reason:" + e);
+        }
+    }
+
+    /**
+     * Converts several images using single invocation of JP2_TO_JPG_CONVERT_BATCH, so that the application and its
+     * codecs are loaded once per chunk instead of once per page.
+     *
+     * The application gets path of a manifest as its only argument, manifest contains one line per image with
+     * source and target path separated by tab. It may print target path on standard output as soon as the image
+     * is converted, so that the image can be written into archive before the whole chunk is finished. Images
+     * not reported this way are considered converted once the application exits with zero return code.
+     *
+     * @param srcFiles source images
+     * @param convertedFiles target images in the same order
+     * @param onConverted called with index of converted image
+     * @throws IOException when application cannot be started or fails, not reported images are not converted
+     */
+    static void convertBatch(List<File> srcFiles, List<File> convertedFiles, IntConsumer onConverted) throws IOException {
+        long start = System.nanoTime();
+        var manifest = File.createTempFile("holly_", "_manifest.txt");
+        var indexes = new HashMap<String, Integer>();
+        var reported = new boolean[srcFiles.size()];
+
+        try {
+            try (var writer = Files.newBufferedWriter(manifest.toPath(), StandardCharsets.UTF_8)) {
+                for (int i = 0; i < srcFiles.size(); i++) {
+                    writer.write(srcFiles.get(i) + "\t" + convertedFiles.get(i) + "\n");
+                    indexes.put(convertedFiles.get(i).toString(), i);
+                }
+            }
+
+            var command = new ArrayList<>(Arrays.asList(JP2_TO_JPG_CONVERT_BATCH.trim().split("\\s+")));
+            command.add(manifest.toString());
+
+            var convertProcess = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            boolean exited = false;
+
+            try {
+                try (var reader = new BufferedReader(new InputStreamReader(convertProcess.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        var index = indexes.get(line.trim());
+
+                        if (index != null && !reported[index]) {
+                            reported[index] = true;
+                            onConverted.accept(index);
+                        }
+                    }
+                }
+
+                int exitCode = convertProcess.waitFor();
+                exited = true;
+
+                if (exitCode != 0) {
+                    BATCH_METERS.failed(start);
+                    throw new IOException("Batch convert process failed with non zero return code.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for batch convert process.");
+            } finally {
+                //reading output or handling of converted image failed, application must not be left running
+                if (!exited) {
+                    convertProcess.destroy();
+                    BATCH_METERS.failed(start);
+                }
+            }
+
+            for (int i = 0; i < reported.length; i++) {
+                if (!reported[i] && convertedFiles.get(i).length() > 0) {
+                    reported[i] = true;
+                    onConverted.accept(i);
+                }
+            }
+
+            BATCH_METERS.converted(start, srcFiles.size());
+            logger.fine(() -> "Converted " + srcFiles.size() + " pages in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } finally {
+            manifest.delete();
+        }
+    }
+
+    /**
+     * Starts conversion whose output is read from standard output or named pipe depending on CONVERT_MODE
+     *
+     * @param srcFile source image
+     * @param name name of converted image, used as named pipe suffix so that application can detect the format
+     * @return running conversion
+     * @throws IOException when conversion application or named pipe cannot be created
+     */
+    static StreamedConversion startStreamed(File srcFile, String name) throws IOException {
+        if (MODE == Mode.PIPE) {
+            var pipe = createPipe(name);
+
+            try {
+                var process = new ProcessBuilder(getCommand(srcFile, pipe.toString()))
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+
+                return new StreamedConversion(process, pipe);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(pipe);
+                throw e;
+            }
+        }
+
+        var process = new ProcessBuilder(getCommand(srcFile, STDOUT_ARG))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        return new StreamedConversion(process, null);
+    }
+
+    /**
+     * Command is split on whitespaces the same way as Runtime.exec does
+     */
+    private static List<String> getCommand(File srcFile, String target) {
+        if (JP2_TO_JPG_CONVERT == null || JP2_TO_JPG_CONVERT.isEmpty()) {
+            throw new IllegalStateException("Conversion SW not set.");
+        }
+
+        var command = new ArrayList<>(Arrays.asList(JP2_TO_JPG_CONVERT.trim().split("\\s+")));
+        command.add(srcFile.toString());
+        command.add(target);
+
+        return command;
+    }
+
+    private static Path createPipe(String name) throws IOException {
+        var pipe = getPipeDirectory().resolve(pipeCounter.incrementAndGet() + "_" + name);
+        var mkfifo = new ProcessBuilder("mkfifo", pipe.toString()).redirectErrorStream(true).start();
+
+        try {
+            if (mkfifo.waitFor() != 0) {
+                throw new IOException("Could not create named pipe: " + pipe);
+            }
+        } catch (InterruptedException e) {
+            mkfifo.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating named pipe: " + pipe);
+        }
+
+        return pipe;
+    }
+
+    private static synchronized Path getPipeDirectory() throws IOException {
+        if (pipeDirectory == null) {
+            pipeDirectory = Files.createTempDirectory("holly_pipes");
+            pipeDirectory.toFile().deleteOnExit();
+        }
+
+        return pipeDirectory;
+    }
+
+    private static Mode getMode() {
+        var value = EnvUtils.getString("CONVERT_MODE", "file");
+
+        try {
+            return Mode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid value of CONVERT_MODE: " + value + ", using file");
+            return Mode.FILE;
+        }
+    }
+
+    /**
+     * Conversion time and failures of single conversion mode
+     */
+    static class ConversionMeters {
+        private final Timer successTimer;
+        private final Timer failureTimer;
+        private final Counter failures;
+        private final Counter pages;
+
+        private ConversionMeters(String mode) {
+            successTimer = MetricsUtils.timer("holly.conversion", "Run time of conversion application", "mode", mode, "outcome", "success");
+            failureTimer = MetricsUtils.timer("holly.conversion", "Run time of conversion application", "mode", mode, "outcome", "error");
+            failures = MetricsUtils.counter("holly.conversion.failures", "Failed runs of conversion application", "mode", mode);
+            pages = MetricsUtils.counter("holly.conversion.pages", "Converted pages", "mode", mode);
+        }
+
+        /**
+         * @param start System.nanoTime when the application was started
+         * @param count count of converted pages
+         */
+        void converted(long start, int count) {
+            successTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            pages.increment(count);
+        }
+
+        /**
+         * @param start System.nanoTime when the application was started
+         */
+        void failed(long start) {
+            failureTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            failures.increment();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package cz.mzk.holly.archive;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Page prepared to be written into archive
+ *
+ * @author kremlacek
+ */
+class PreparedEntry {
+
+    private final String name;
+    private final File file;
+    private final boolean temporary;
+    private final StreamedConversion conversion;
+    private final DerivativeCache cache;
+
+    private final boolean stored;
+    private final long crc;
+    private final long size;
+
+    /**
+     * @param name entry name within archive
+     * @param file file with entry data
+     * @param temporary true if file should be removed once written
+     * @throws IOException when crc of stored entry cannot be computed
+     */
+    PreparedEntry(String name, File file, boolean temporary) throws IOException {
+        this(name, file, temporary, null);
+    }
+
+    /**
+     * @param name entry name within archive
+     * @param file file with entry data
+     * @param cache cache the file was acquired from, it is released once written
+     * @throws IOException when crc of stored entry cannot be computed
+     */
+    PreparedEntry(String name, File file, DerivativeCache cache) throws IOException {
+        this(name, file, false, cache);
+    }
+
+    private PreparedEntry(String name, File file, boolean temporary, DerivativeCache cache) throws IOException {
+        this.name = name;
+        this.file = file;
+        this.temporary = temporary;
+        this.conversion = null;
+        this.cache = cache;
+
+        this.stored = EntryCompression.isStored(name);
+        this.size = file.length();
+        this.crc = stored ? EntryCompression.computeCrc(file, !temporary) : -1;
+    }
+
+    /**
+     * Entry whose data are read from running conversion, its size and crc are not known in advance
+     *
+     * @param name entry name within archive
+     * @param conversion running conversion
+     */
+    PreparedEntry(String name, StreamedConversion conversion) {
+        this.name = name;
+        this.file = null;
+        this.temporary = false;
+        this.conversion = conversion;
+        this.cache = null;
+
+        this.stored = false;
+        this.size = -1;
+        this.crc = -1;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if entry should be stored without compression, crc and size are known in that case
+     */
+    boolean isStored() {
+        return stored;
+    }
+
+    /**
+     * @return true if entry data are streamed from conversion instead of file
+     */
+    boolean isStreamed() {
+        return conversion != null;
+    }
+
+    StreamedConversion getConversion() {
+        return conversion;
+    }
+
+    long getCrc() {
+        return crc;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Releases resources held by the entry, e.g. removes temporary converted file or stops conversion
+     */
+    void release() {
+        if (conversion != null) {
+            conversion.release();
+        }
+
+        if (cache != null) {
+            cache.release(file);
+        }
+
+        if (temporary) {
+            file.delete();
+        }
+    }
+}
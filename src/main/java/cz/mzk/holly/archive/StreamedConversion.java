@@ -0,0 +1,136 @@
+package cz.mzk.holly.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Running conversion whose output is streamed into archive from standard output or named pipe of the application
+ *
+ * @author kremlacek
+ */
+class StreamedConversion {
+
+    private static final Logger logger = Logger.getLogger(StreamedConversion.class.getName());
+
+    private final Process process;
+    private final Path pipe;
+    private final long started = System.nanoTime();
+
+    //write end of the pipe held for reader of application which exited, guarded by this
+    private SeekableByteChannel unblocker;
+    private boolean opened = false;
+    private boolean released = false;
+
+    /**
+     * @param process running conversion application
+     * @param pipe named pipe the application writes into, null if it writes to standard output
+     */
+    StreamedConversion(Process process, Path pipe) {
+        this.process = process;
+        this.pipe = pipe;
+
+        if (pipe != null) {
+            //opening of the pipe blocks until the application opens it as well, if the application fails before
+            //doing so, the pipe is held open here until the reader opens it, so that the reader gets end of stream
+            process.onExit().thenRun(this::unblockPipe);
+        }
+    }
+
+    /**
+     * Opens output of the conversion, may block until the application starts writing
+     *
+     * @return converted image data
+     * @throws IOException when output cannot be opened
+     */
+    InputStream openOutput() throws IOException {
+        if (pipe == null) {
+            return process.getInputStream();
+        }
+
+        var in = Files.newInputStream(pipe);
+
+        synchronized (this) {
+            opened = true;
+            closeUnblocker();
+        }
+
+        return in;
+    }
+
+    /**
+     * Waits for the application to exit, should be called once whole output was read
+     *
+     * @throws IOException when conversion failed, read output is incomplete in that case
+     */
+    void finish() throws IOException {
+        try {
+            int exitCode = process.waitFor();
+
+            if (exitCode != 0) {
+                PageConverter.STREAMED_METERS.failed(started);
+                throw new IOException("Convert process failed with non zero return code.");
+            }
+
+            PageConverter.STREAMED_METERS.converted(started, 1);
+        } catch (InterruptedException e) {
+            PageConverter.STREAMED_METERS.failed(started);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for convert process.");
+        }
+    }
+
+    /**
+     * Kills the application if it is still running and removes named pipe
+     */
+    void release() {
+        synchronized (this) {
+            released = true;
+            closeUnblocker();
+        }
+
+        process.destroyForcibly();
+
+        if (pipe != null) {
+            try {
+                Files.deleteIfExists(pipe);
+            } catch (IOException e) {
+                logger.warning("Could not remove named pipe: " + pipe);
+            }
+        }
+    }
+
+    /**
+     * Opens the pipe for both reading and writing, which does not block, unless the reader has opened it already
+     */
+    private synchronized void unblockPipe() {
+        if (opened || released) {
+            return;
+        }
+
+        try {
+            //pipe is not created again if already removed
+            unblocker = Files.newByteChannel(pipe, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            //pipe was already removed
+        }
+    }
+
+    private void closeUnblocker() {
+        if (unblocker == null) {
+            return;
+        }
+
+        try {
+            unblocker.close();
+        } catch (IOException e) {
+            logger.warning("Could not close named pipe: " + pipe);
+        }
+
+        unblocker = null;
+    }
+}
@@ -1,18 +1,26 @@
 package cz.mzk.holly.controller;
 
+import cz.mzk.holly.EnvUtils;
 import cz.mzk.holly.FileUtils;
+import cz.mzk.holly.extractor.BatchProgress;
 import cz.mzk.holly.extractor.ImageExtractor;
+import cz.mzk.holly.extractor.Packer;
+import cz.mzk.holly.model.TreeNode;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -20,8 +28,12 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.view.RedirectView;
 
 /**
@@ -35,6 +47,11 @@ public class ImagepointController {
     private static final String[] ACCEPTED_FORMATS = {"jpg", "jp2", "tiff"};
     private static final Set<String> ACCEPTED_FORMATS_SET = new HashSet<>(Arrays.asList(ACCEPTED_FORMATS));
 
+    private static final int BATCH_LIST_MAX_PAGE_SIZE = 500;
+
+    //titles with more pages are packed as staged batch instead of being streamed
+    private static final int DIRECT_DOWNLOAD_PAGE_LIMIT = EnvUtils.getInt("DIRECT_DOWNLOAD_PAGE_LIMIT", 100);
+
     @GetMapping("/")
     public String home(Model model) {
         return "index";
@@ -60,6 +77,58 @@ public class ImagepointController {
         return new RedirectView("batchList");
     }
 
+    /**
+     * Streams zip archive of a small title directly into the response while it is being created, nothing is stored
+     * in BATCH_PATH. Titles over DIRECT_DOWNLOAD_PAGE_LIMIT pages are processed as a regular batch instead.
+     */
+    @PostMapping("/direct")
+    public ResponseEntity<StreamingResponseBody> downloadDirect(
+            @RequestParam(name = "uuid") String uuid,
+            @RequestParam(name = "from", required = false) Integer fromPage,
+            @RequestParam(name = "to", required = false) Integer toPage,
+            @RequestParam(name = "batchName") String batchName,
+            @RequestParam(name = "format", defaultValue = "jp2") String format) throws IOException {
+
+        if (!ACCEPTED_FORMATS_SET.contains(format)) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+
+        var ie = new ImageExtractor();
+        var cfg = new Packer.Config(batchName, uuid, format, fromPage, toPage, null, null, null, null);
+        var pageCount = 0;
+        TreeNode root = null;
+
+        if (DIRECT_DOWNLOAD_PAGE_LIMIT > 0) {
+            root = ie.crawl(cfg, DIRECT_DOWNLOAD_PAGE_LIMIT);
+            pageCount = ie.getPageCounterValue();
+        }
+
+        if (root == null || pageCount > DIRECT_DOWNLOAD_PAGE_LIMIT) {
+            logger.info("Title " + uuid + " cannot be downloaded directly (over " + DIRECT_DOWNLOAD_PAGE_LIMIT + " pages or incomplete), creating batch.");
+
+            //metadata are cached, therefore repeated crawl of the batch is cheap
+            ie.batch(batchName, uuid, format, fromPage, toPage);
+
+            return ResponseEntity.status(HttpStatus.SEE_OTHER)
+                    .header(HttpHeaders.LOCATION, "batchList")
+                    .build();
+        }
+
+        if (pageCount == 0) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+
+        var fileName = batchName + (batchName.toLowerCase().endsWith(".zip") ? "" : ".zip");
+        var tree = root;
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                //name is supplied by the user, encoded so that it cannot break the header
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+                        .filename(fileName, StandardCharsets.UTF_8).build().toString())
+                .body(out -> FileUtils.writeZipArchive(out, tree, format));
+    }
+
     @GetMapping("/batch")
     public String batchGet(Model model) {
         return "batch/form";
@@ -83,27 +152,73 @@ public class ImagepointController {
     }
 
     @GetMapping("/batchList")
-    public String batchList(Model model) {
-        model.addAttribute("batchList", new ImageExtractor().listBatches());
+    public String batchList(
+            @RequestParam(name = "page", defaultValue = "0") int page,
+            @RequestParam(name = "size", defaultValue = "50") int size,
+            @RequestParam(name = "sort", defaultValue = "date") String sort,
+            @RequestParam(name = "desc", defaultValue = "true") boolean descending,
+            Model model
+    ) {
+        var batchPage = new ImageExtractor().listBatches(page, Math.min(Math.max(size, 1), BATCH_LIST_MAX_PAGE_SIZE), sort, descending);
+
+        model.addAttribute("batchPage", batchPage);
+        model.addAttribute("batchList", batchPage.getBatches());
         return "batch/list";
     }
 
+    /**
+     * Progress of batches being processed
+     */
+    @GetMapping(value = "/batchProgress", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public List<BatchProgress> batchProgress() {
+        return BatchProgress.getActive();
+    }
+
+    /**
+     * Progress of batches being processed sent as Server-Sent Events every PROGRESS_INTERVAL
+     */
+    @GetMapping(value = "/batchProgress/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter batchProgressStream() {
+        return ProgressBroadcaster.getInstance().subscribe();
+    }
+
     @PostMapping("/batchList")
-    public ResponseEntity<Resource> downloadBatch(
+    public void downloadBatch(
             @RequestParam(name = "name") String name,
-            HttpServletRequest request
-    ) throws MalformedURLException {
-        if (name == null || name.isEmpty()) {
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException {
+        serveBatch(name, request, response);
+    }
+
+    /**
+     * Download of batch supporting byte ranges and conditional requests, so that download can be resumed
+     */
+    @GetMapping("/download/{name:.+}")
+    public void downloadBatchFile(
+            @PathVariable("name") String name,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ) throws IOException {
+        serveBatch(name, request, response);
+    }
+
+    private void serveBatch(String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        //safecheck, only files directly within BATCH_PATH are served
+        if (name == null || name.isEmpty() || name.contains("/") || name.contains("\\") || name.contains("..")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
         }
 
         var zipFile = new ImageExtractor().getBatchFile(name);
 
-        if (zipFile == null) {
-            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        if (zipFile == null || !zipFile.isFile()) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
         }
 
-        return prepareFileResponse(request, zipFile);
+        RangeFileServer.serve(request, response, zipFile, getContentType(request, zipFile));
     }
 
     @GetMapping("/periodical")
@@ -157,22 +272,22 @@ public class ImagepointController {
     private ResponseEntity<Resource> prepareFileResponse(HttpServletRequest request, File responseFile) throws MalformedURLException {
         Resource resource = new UrlResource(responseFile.toURI());
 
-        String contentType = null;
-        try {
-            contentType = request.getServletContext().getMimeType(resource.getFile().getAbsolutePath());
-        } catch (IOException ex) {
-            logger.info("Could not determine file type.");
-        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(getContentType(request, responseFile)))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"")
+                .body(resource);
+    }
+
+    private String getContentType(HttpServletRequest request, File file) {
+        String contentType = request.getServletContext().getMimeType(file.getAbsolutePath());
 
         // Fallback to the default content type if type could not be determined
-        if(contentType == null) {
+        if (contentType == null) {
+            logger.info("Could not determine file type.");
             contentType = "application/octet-stream";
         }
 
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + resource.getFilename() + "\"")
-                .body(resource);
+        return contentType;
     }
 
 }
@@ -0,0 +1,89 @@
+package cz.mzk.holly.controller;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.extractor.BatchProgress;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Sends progress of active batches to subscribed clients as Server-Sent Events every PROGRESS_INTERVAL
+ * milliseconds. Progress is collected once per interval regardless of the count of subscribers and nothing
+ * is collected while there are none.
+ *
+ * @author kremlacek
+ */
+class ProgressBroadcaster {
+
+    private static final Logger logger = Logger.getLogger(ProgressBroadcaster.class.getName());
+
+    private static final long INTERVAL = Math.max(100, EnvUtils.getLong("PROGRESS_INTERVAL", 1000));
+
+    private final List<SseEmitter> emitters = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "progress-broadcaster");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ProgressBroadcaster() {
+        timer.scheduleWithFixedDelay(this::broadcast, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    static ProgressBroadcaster getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Creates stream of progress events, current progress is sent right away
+     *
+     * @return emitter to be returned by the controller
+     */
+    SseEmitter subscribe() {
+        //timeout is given by spring.mvc.async.request-timeout, EventSource reconnects afterwards
+        var emitter = new SseEmitter();
+
+        emitter.onCompletion(() -> emitters.remove(emitter));
+        emitter.onTimeout(() -> emitters.remove(emitter));
+        emitter.onError(e -> emitters.remove(emitter));
+
+        try {
+            emitter.send(BatchProgress.getActive(), MediaType.APPLICATION_JSON);
+        } catch (IOException e) {
+            return emitter;
+        }
+
+        emitters.add(emitter);
+
+        return emitter;
+    }
+
+    private void broadcast() {
+        if (emitters.isEmpty()) {
+            return;
+        }
+
+        var progress = BatchProgress.getActive();
+
+        for (var emitter : emitters) {
+            try {
+                emitter.send(progress, MediaType.APPLICATION_JSON);
+            } catch (IOException | IllegalStateException e) {
+                //client disconnected, the request is completed by the container
+                logger.fine("Progress subscriber removed. Reason: " + e.getMessage());
+                emitters.remove(emitter);
+            }
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final ProgressBroadcaster INSTANCE = new ProgressBroadcaster();
+    }
+}
@@ -0,0 +1,347 @@
+package cz.mzk.holly.controller;
+
+import cz.mzk.holly.EnvUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves files with support of conditional requests (ETag, Last-Modified) and byte ranges, so that interrupted
+ * downloads of large archives can be resumed and downloaded in parallel chunks.
+ *
+ * Single range and whole file responses are handed over to Tomcat sendfile when the connector supports it,
+ * otherwise file is copied using FileChannel.transferTo.
+ *
+ * @author kremlacek
+ */
+public class RangeFileServer {
+
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final boolean SENDFILE_ENABLED = EnvUtils.getBoolean("DOWNLOAD_SENDFILE", true);
+
+    //requests with more ranges are served whole, protects against requests consisting of many tiny ranges
+    private static final int MAX_RANGES = 64;
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+    private RangeFileServer() {
+    }
+
+    /**
+     * Writes file into the response. Ranges and If-Modified-Since/If-None-Match are evaluated only for GET and HEAD.
+     *
+     * @param request http request
+     * @param response http response
+     * @param file file to be served
+     * @param contentType content type of the file
+     * @throws IOException when file cannot be read or response written
+     */
+    public static void serve(HttpServletRequest request, HttpServletResponse response, File file, String contentType) throws IOException {
+        long length = file.length();
+        //http dates have second precision
+        long lastModified = file.lastModified() / 1000 * 1000;
+        var etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(file.lastModified()) + "\"";
+        var method = request.getMethod();
+        boolean safeMethod = "GET".equals(method) || "HEAD".equals(method);
+
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", formatDate(lastModified));
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+
+        //preconditions in order defined by RFC 7232, section 6
+        var ifMatch = request.getHeader("If-Match");
+        if (ifMatch != null) {
+            if (!matchesEtag(ifMatch, etag, false)) {
+                response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+                return;
+            }
+        } else if (isModifiedSince(request.getHeader("If-Unmodified-Since"), lastModified, false)) {
+            response.setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return;
+        }
+
+        var ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (matchesEtag(ifNoneMatch, etag, true)) {
+                response.setStatus(safeMethod ? HttpServletResponse.SC_NOT_MODIFIED : HttpServletResponse.SC_PRECONDITION_FAILED);
+                return;
+            }
+        } else if (safeMethod && !isModifiedSince(request.getHeader("If-Modified-Since"), lastModified, true)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        List<long[]> ranges = null;
+        var rangeHeader = request.getHeader("Range");
+
+        if (safeMethod && rangeHeader != null && isIfRangeSatisfied(request.getHeader("If-Range"), etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, length);
+
+            if (ranges != null && ranges.isEmpty()) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", "bytes */" + length);
+                return;
+            }
+        }
+
+        boolean headOnly = "HEAD".equals(method);
+
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+
+            if (!headOnly) {
+                writeRange(request, response, file, 0, length);
+            }
+        } else if (ranges.size() == 1) {
+            long start = ranges.get(0)[0];
+            long end = ranges.get(0)[1];
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + length);
+            response.setContentLengthLong(end - start);
+
+            if (!headOnly) {
+                writeRange(request, response, file, start, end);
+            }
+        } else {
+            writeMultipart(response, file, contentType, ranges, length, headOnly);
+        }
+    }
+
+    /**
+     * Parses Range header value
+     *
+     * @param header value of the header
+     * @param length length of the file
+     * @return satisfiable ranges as [start, end) pairs in requested order, empty list if none of the ranges
+     * is satisfiable, null if the header is invalid and whole file should be served
+     */
+    static List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+
+        var specs = header.substring("bytes=".length()).split(",");
+
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        var ranges = new ArrayList<long[]>();
+
+        for (var spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+
+            if (dash < 0) {
+                return null;
+            }
+
+            long start;
+            long end;
+
+            try {
+                if (dash == 0) {
+                    //suffix range, last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+
+                    if (suffix < 0) {
+                        return null;
+                    }
+
+                    start = Math.max(0, length - suffix);
+                    end = suffix == 0 ? 0 : length;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+
+                    if (dash == spec.length() - 1) {
+                        end = length;
+                    } else {
+                        long last = Long.parseLong(spec.substring(dash + 1));
+
+                        if (last < start) {
+                            return null;
+                        }
+
+                        end = Math.min(last + 1, length);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start < 0) {
+                return null;
+            }
+
+            if (start < end) {
+                ranges.add(new long[] {start, end});
+            }
+        }
+
+        return ranges;
+    }
+
+    private static void writeRange(HttpServletRequest request, HttpServletResponse response, File file, long start, long end) throws IOException {
+        if (SENDFILE_ENABLED && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            //tomcat sends the file after the request is processed
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, end);
+            return;
+        }
+
+        var out = response.getOutputStream();
+        transfer(file, start, end, Channels.newChannel(out));
+        out.flush();
+    }
+
+    private static void writeMultipart(HttpServletResponse response, File file, String contentType, List<long[]> ranges, long length, boolean headOnly) throws IOException {
+        var boundary = UUID.randomUUID().toString();
+        var headers = new ArrayList<byte[]>();
+        var closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = closing.length;
+
+        for (var range : ranges) {
+            var partHeader = ("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + (range[1] - 1) + "/" + length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+
+            headers.add(partHeader);
+            contentLength += partHeader.length + range[1] - range[0];
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+
+        if (headOnly) {
+            return;
+        }
+
+        OutputStream out = response.getOutputStream();
+        var channel = Channels.newChannel(out);
+
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(headers.get(i));
+            transfer(file, ranges.get(i)[0], ranges.get(i)[1], channel);
+        }
+
+        out.write(closing);
+        out.flush();
+    }
+
+    private static void transfer(File file, long start, long end, WritableByteChannel target) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = start;
+
+            while (position < end) {
+                long transferred = channel.transferTo(position, end - position, target);
+
+                if (transferred <= 0) {
+                    //file was truncated while being served
+                    throw new IOException("Unexpected end of file: " + file.getName());
+                }
+
+                position += transferred;
+            }
+        }
+    }
+
+    private static boolean matchesEtag(String header, String etag, boolean weak) {
+        if (header.trim().equals("*")) {
+            return true;
+        }
+
+        for (var candidate : header.split(",")) {
+            candidate = candidate.trim();
+
+            if (candidate.startsWith("W/")) {
+                if (!weak) {
+                    continue;
+                }
+
+                candidate = candidate.substring(2);
+            }
+
+            if (candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param header value of date header
+     * @param lastModified last modification of the file
+     * @param defaultValue returned when header is not present or invalid
+     * @return true if file was modified after the date
+     */
+    private static boolean isModifiedSince(String header, long lastModified, boolean defaultValue) {
+        var date = parseDate(header);
+
+        return date == null ? defaultValue : lastModified > date;
+    }
+
+    /**
+     * Range is applied only if If-Range is missing or matches current representation exactly
+     */
+    private static boolean isIfRangeSatisfied(String header, String etag, long lastModified) {
+        if (header == null) {
+            return true;
+        }
+
+        header = header.trim();
+
+        if (header.startsWith("\"") || header.startsWith("W/")) {
+            return header.equals(etag);
+        }
+
+        var date = parseDate(header);
+
+        return date != null && date == lastModified;
+    }
+
+    private static Long parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            //invalid dates are ignored
+            return null;
+        }
+    }
+
+    private static String formatDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+}
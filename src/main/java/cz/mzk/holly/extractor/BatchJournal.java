@@ -0,0 +1,156 @@
+package cz.mzk.holly.extractor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Persisted list of submitted batches which have not finished yet. Every batch is stored as properties file
+ * in .journal directory of BATCH_PATH, so that interrupted batches can be recovered after restart.
+ *
+ * @author kremlacek
+ */
+class BatchJournal {
+
+    private static final Logger logger = Logger.getLogger(BatchJournal.class.getName());
+
+    private static final String JOURNAL_DIRECTORY = ".journal";
+    private static final String JOB_SUFFIX = ".job";
+
+    private final Path directory;
+
+    /**
+     * @param packPath BATCH_PATH
+     */
+    BatchJournal(Path packPath) {
+        this.directory = packPath.resolve(JOURNAL_DIRECTORY);
+    }
+
+    /**
+     * Stores batch, failure is only logged as the batch can be processed without being journaled
+     *
+     * @param zipName name of the batch archive
+     * @param cfg batch configuration
+     */
+    void add(String zipName, Packer.Config cfg) {
+        var properties = new Properties();
+        setProperty(properties, "name", cfg.getName());
+        setProperty(properties, "uuidList", cfg.getUuidListStr());
+        setProperty(properties, "format", cfg.getFormat());
+        setProperty(properties, "fromPage", cfg.getFromPage());
+        setProperty(properties, "toPage", cfg.getToPage());
+        setProperty(properties, "fromYear", cfg.getFromYear());
+        setProperty(properties, "toYear", cfg.getToYear());
+        setProperty(properties, "fromIssue", cfg.getFromIssue());
+        setProperty(properties, "toIssue", cfg.getToIssue());
+
+        try {
+            Files.createDirectories(directory);
+
+            //written into temporary file first, so that journal never contains partially written batch
+            var tempFile = Files.createTempFile(directory, zipName, ".tmp");
+
+            try (var writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+
+            try {
+                Files.move(tempFile, getJobFile(zipName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, getJobFile(zipName), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not journal batch " + zipName + ", it will not be recovered after restart. Reason: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes finished batch
+     *
+     * @param zipName name of the batch archive
+     */
+    void remove(String zipName) {
+        try {
+            Files.deleteIfExists(getJobFile(zipName));
+        } catch (IOException e) {
+            logger.warning("Could not remove batch " + zipName + " from journal. Reason: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads all journaled batches, unreadable entries are skipped
+     *
+     * @return configurations of batches keyed by archive name
+     */
+    Map<String, Packer.Config> load() {
+        var batches = new LinkedHashMap<String, Packer.Config>();
+
+        if (!Files.isDirectory(directory)) {
+            return batches;
+        }
+
+        try (var files = Files.list(directory)) {
+            for (var file : files.sorted().collect(Collectors.toList())) {
+                var fileName = file.getFileName().toString();
+
+                if (!fileName.endsWith(JOB_SUFFIX)) {
+                    //leftover of interrupted write
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+
+                var properties = new Properties();
+
+                try (var reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                } catch (IOException | IllegalArgumentException e) {
+                    logger.warning("Could not read journaled batch " + fileName + ". Reason: " + e.getMessage());
+                    continue;
+                }
+
+                batches.put(fileName.substring(0, fileName.length() - JOB_SUFFIX.length()), new Packer.Config(
+                        properties.getProperty("name"),
+                        properties.getProperty("uuidList"),
+                        properties.getProperty("format"),
+                        getInteger(properties, "fromPage"),
+                        getInteger(properties, "toPage"),
+                        getInteger(properties, "fromYear"),
+                        getInteger(properties, "toYear"),
+                        properties.getProperty("fromIssue"),
+                        properties.getProperty("toIssue")));
+            }
+        } catch (IOException e) {
+            logger.severe("Could not read batch journal. Reason: " + e.getMessage());
+        }
+
+        return batches;
+    }
+
+    private Path getJobFile(String zipName) {
+        return directory.resolve(zipName + JOB_SUFFIX);
+    }
+
+    private static void setProperty(Properties properties, String key, Object value) {
+        if (value != null) {
+            properties.setProperty(key, value.toString());
+        }
+    }
+
+    private static Integer getInteger(Properties properties, String key) {
+        var value = properties.getProperty(key);
+
+        try {
+            return value == null ? null : Integer.valueOf(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package cz.mzk.holly.extractor;
+
+import cz.mzk.holly.archive.ArchiveWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live progress of batch being processed. Progress of batches is kept only while they are processed, finished
+ * batches are listed by {@link BatchRegistry}.
+ *
+ * @author kremlacek
+ */
+public class BatchProgress implements ArchiveWriter.ProgressListener {
+
+    private static final Map<String, BatchProgress> ACTIVE = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ImageExtractor imageExtractor;
+    private final long created = System.currentTimeMillis();
+
+    private volatile String phase = "queued";
+    private volatile int pagesTotal = 0;
+    private volatile int pagesWritten = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long packingStarted = 0;
+
+    BatchProgress(String name, ImageExtractor imageExtractor) {
+        this.name = name;
+        this.imageExtractor = imageExtractor;
+    }
+
+    /**
+     * @return progress of all batches being processed ordered by their submission
+     */
+    public static List<BatchProgress> getActive() {
+        var result = new ArrayList<>(ACTIVE.values());
+        result.sort(Comparator.comparingLong(p -> p.created));
+        return result;
+    }
+
+    /**
+     * @param name archive name of the batch
+     * @return progress of the batch, null if the batch is not being processed
+     */
+    public static BatchProgress get(String name) {
+        return ACTIVE.get(name);
+    }
+
+    void register() {
+        ACTIVE.put(name, this);
+    }
+
+    void unregister() {
+        ACTIVE.remove(name, this);
+    }
+
+    void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    void startPacking(int pagesTotal) {
+        this.pagesTotal = pagesTotal;
+        this.packingStarted = System.nanoTime();
+        this.phase = "packing";
+    }
+
+    /**
+     * @param pagesTotal count of pages of pipelined batch known once its crawl is finished
+     */
+    void setPagesTotal(int pagesTotal) {
+        this.pagesTotal = pagesTotal;
+    }
+
+    @Override
+    public void entryWritten(String entryName, long bytesWritten) {
+        //called by single writer thread only
+        this.bytesWritten = bytesWritten;
+        this.pagesWritten++;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return queued, searching, waiting or packing
+     */
+    public String getPhase() {
+        return phase;
+    }
+
+    public int getObjectsCrawled() {
+        return imageExtractor.getObjectCounterValue();
+    }
+
+    public int getPagesResolved() {
+        return imageExtractor.getPageCounterValue();
+    }
+
+    public int getPageLimit() {
+        return ImageExtractor.PAGE_LIMIT;
+    }
+
+    /**
+     * @return count of pages to be packed, 0 before packing starts, pipelined batch still being searched reports
+     * pages found before its packing started
+     */
+    public int getPagesTotal() {
+        return pagesTotal;
+    }
+
+    /**
+     * @return count of pages converted and written into archive
+     */
+    public int getPagesConverted() {
+        return pagesWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Estimates remaining packing time from the rate of pages written so far
+     *
+     * @return estimated seconds until the archive is finished, null if it cannot be estimated yet
+     */
+    public Long getEtaSeconds() {
+        int written = pagesWritten;
+        long started = packingStarted;
+
+        if (started == 0 || written == 0 || pagesTotal == 0) {
+            return null;
+        }
+
+        long elapsed = System.nanoTime() - started;
+        long remaining = elapsed / written * Math.max(0, pagesTotal - written);
+
+        return TimeUnit.NANOSECONDS.toSeconds(remaining);
+    }
+}
@@ -0,0 +1,308 @@
+package cz.mzk.holly.extractor;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.FileUtils;
+import cz.mzk.holly.model.Batch;
+import cz.mzk.holly.model.BatchPage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * In-memory registry of batches stored in BATCH_PATH, so that batch list is not created by listing the directory
+ * on every request.
+ *
+ * Registry is updated directly by the batch processing and by WatchService for changes made outside of the
+ * application. Since WatchService does not report changes made by other NFS clients, the directory is also
+ * listed again every BATCH_REGISTRY_RESCAN seconds.
+ *
+ * Sorted views are created lazily after a change, pages are then served in O(page size).
+ *
+ * @author kremlacek
+ */
+public class BatchRegistry {
+
+    private static final Logger logger = Logger.getLogger(BatchRegistry.class.getName());
+
+    private static final long RESCAN_INTERVAL = Math.max(0, EnvUtils.getLong("BATCH_REGISTRY_RESCAN", 600));
+
+    private static final Map<Path, BatchRegistry> INSTANCES = new ConcurrentHashMap<>();
+
+    /**
+     * Order of the batch list
+     */
+    public enum Sort {
+        NAME(Comparator.comparing(e -> e.name)),
+        STATUS(Comparator.<Entry, String>comparing(e -> e.status).thenComparing(e -> e.name)),
+        SIZE(Comparator.<Entry>comparingLong(e -> e.size).thenComparing(e -> e.name)),
+        DATE(Comparator.<Entry>comparingLong(e -> e.modified).thenComparing(e -> e.name));
+
+        private final Comparator<Entry> comparator;
+
+        Sort(Comparator<Entry> comparator) {
+            this.comparator = comparator;
+        }
+
+        /**
+         * @param value name of the order, case insensitive
+         * @return parsed order, DATE if value is not valid
+         */
+        public static Sort parse(String value) {
+            for (var sort : values()) {
+                if (sort.name().equalsIgnoreCase(value)) {
+                    return sort;
+                }
+            }
+
+            return DATE;
+        }
+    }
+
+    private final Path directory;
+
+    //entries keyed by file name, guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Sort, Entry[]> sorted = new EnumMap<>(Sort.class);
+
+    private BatchRegistry(Path directory) {
+        this.directory = directory;
+
+        rescan();
+
+        var watcher = new Thread(this::watch, "batch-registry-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @param directory directory containing batches (BATCH_PATH)
+     * @return registry of the directory, directory is listed on first use
+     */
+    public static BatchRegistry getInstance(Path directory) {
+        return INSTANCES.computeIfAbsent(directory.toAbsolutePath().normalize(), BatchRegistry::new);
+    }
+
+    /**
+     * Returns page of batches
+     *
+     * @param page index of the page starting at 0, pages after the last one are replaced by the last one
+     * @param size count of batches on the page
+     * @param sort order of the list
+     * @param descending true for descending order
+     * @return requested page
+     */
+    public BatchPage list(int page, int size, Sort sort, boolean descending) {
+        size = Math.max(1, size);
+
+        Entry[] view;
+
+        synchronized (this) {
+            view = sorted.computeIfAbsent(sort, s -> {
+                var array = entries.values().toArray(new Entry[0]);
+                Arrays.sort(array, s.comparator);
+                return array;
+            });
+        }
+
+        int lastPage = Math.max(0, (view.length - 1) / size);
+        page = Math.min(Math.max(0, page), lastPage);
+
+        int from = page * size;
+        int to = Math.min(view.length, from + size);
+        var batches = new ArrayList<Batch>(to - from);
+
+        for (int i = from; i < to; i++) {
+            batches.add(toBatch(view[descending ? view.length - 1 - i : i]));
+        }
+
+        return new BatchPage(batches, page, size, view.length, sort.name().toLowerCase(), descending);
+    }
+
+    /**
+     * Updates state of single file from the disk
+     *
+     * @param file batch archive, status file or report file within the directory
+     */
+    void update(File file) {
+        var name = file.getName();
+
+        if (!isBatchFile(name)) {
+            return;
+        }
+
+        synchronized (this) {
+            var entry = file.isFile() ? read(file) : null;
+            var previous = entry == null ? entries.remove(name) : entries.put(name, entry);
+
+            if (isChanged(previous, entry)) {
+                sorted.clear();
+            }
+        }
+    }
+
+    /**
+     * Registers report file without reading it back
+     *
+     * @param file report file
+     * @param message first line of the report
+     */
+    void updateReport(File file, String message) {
+        synchronized (this) {
+            entries.put(file.getName(), new Entry(file.getName(), message, 0, file.lastModified()));
+            sorted.clear();
+        }
+    }
+
+    /**
+     * Replaces content of the registry by the directory listing
+     */
+    void rescan() {
+        var files = directory.toFile().listFiles();
+
+        if (files == null) {
+            logger.severe("File listing returned null! Check BATCH_PATH variable.");
+            return;
+        }
+
+        var scanned = new HashMap<String, Entry>();
+
+        for (var file : files) {
+            if (file.isFile() && isBatchFile(file.getName())) {
+                scanned.put(file.getName(), read(file));
+            }
+        }
+
+        synchronized (this) {
+            entries.clear();
+            entries.putAll(scanned);
+            sorted.clear();
+        }
+    }
+
+    private void watch() {
+        try (WatchService watchService = directory.getFileSystem().newWatchService()) {
+            directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+
+            while (true) {
+                var key = RESCAN_INTERVAL > 0
+                        ? watchService.poll(RESCAN_INTERVAL, TimeUnit.SECONDS)
+                        : watchService.take();
+
+                if (key == null) {
+                    rescan();
+                    continue;
+                }
+
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else {
+                        update(directory.resolve((Path) event.context()).toFile());
+                    }
+                }
+
+                if (!key.reset()) {
+                    logger.severe("Batch directory is no longer watched, batch list may be outdated.");
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Could not watch batch directory, batch list is updated by the application only. Reason: " + e.getMessage());
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //application shutdown
+        }
+    }
+
+    private static boolean isBatchFile(String name) {
+        return name.contains(".zip");
+    }
+
+    private static boolean isChanged(Entry previous, Entry entry) {
+        if (previous == null || entry == null) {
+            return previous != entry;
+        }
+
+        //growing archive being packed does not change order of the list, its size is read when displayed
+        if (entry.status.equals("packing") && previous.status.equals("packing")) {
+            return false;
+        }
+
+        return !entry.status.equals(previous.status) || entry.size != previous.size || entry.modified != previous.modified;
+    }
+
+    private static Entry read(File f) {
+        var name = f.getName();
+        var lowerName = name.toLowerCase();
+
+        if (lowerName.endsWith(".zip")) {
+            return new Entry(name, "ok", f.length(), f.lastModified());
+        } else if (lowerName.endsWith(".zip" + ImageExtractor.PACKING_SUFFIX)) {
+            return new Entry(name, "packing", f.length(), f.lastModified());
+        } else if (lowerName.endsWith(".zip" + ImageExtractor.SEARCH_SUFFIX)) {
+            return new Entry(name, "searching", -1, f.lastModified());
+        } else if (lowerName.endsWith(".zip" + ImageExtractor.WAITING_SUFFIX)) {
+            return new Entry(name, "waiting", -1, f.lastModified());
+        }
+
+        String status;
+
+        try (BufferedReader reader = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)) {
+            var line = reader.readLine();
+
+            status = line != null ? line : "nok";
+        } catch (IOException e) {
+            logger.severe("Could not read status file. Reason: " + e.getMessage());
+            status = "unknown";
+        }
+
+        return new Entry(name, status, -1, f.lastModified());
+    }
+
+    private Batch toBatch(Entry entry) {
+        long size = entry.size;
+
+        if (entry.status.equals("packing")) {
+            size = directory.resolve(entry.name).toFile().length();
+        }
+
+        return new Batch(entry.name, entry.status,
+                size < 0 ? "-" : FileUtils.humanReadableByteCount(size, true),
+                new Date(entry.modified));
+    }
+
+    /**
+     * File within the batch directory
+     */
+    private static class Entry {
+        private final String name;
+        private final String status;
+        private final long size;
+        private final long modified;
+
+        private Entry(String name, String status, long size, long modified) {
+            this.name = name;
+            this.status = status;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+}
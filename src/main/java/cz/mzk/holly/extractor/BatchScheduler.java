@@ -0,0 +1,380 @@
+package cz.mzk.holly.extractor;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.MetricsUtils;
+import cz.mzk.holly.model.TreeNode;
+import io.micrometer.core.instrument.Timer;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Schedules batches. Hierarchies of submitted batches are crawled right away, crawled batches are then packed
+ * by PACKER_THREAD_LIMIT packers, smallest batch (by page count) first. Waiting batches age, every minute of waiting
+ * counts as PACKER_AGING pages less, so that large batches are not starved by a stream of small ones.
+ *
+ * With BATCH_PIPELINE, pages of crawled titles are streamed to the packer while following titles are crawled.
+ * Such batch is queued for packing once its first title is crawled.
+ *
+ * Unfinished batches are kept in {@link BatchJournal} and are processed again (or reported as interrupted, see
+ * BATCH_RECOVERY) after restart.
+ *
+ * @author kremlacek
+ */
+public class BatchScheduler {
+
+    private static final Logger logger = Logger.getLogger(BatchScheduler.class.getName());
+
+    private static final int PACKER_THREAD_LIMIT = Math.max(1, EnvUtils.getInt("PACKER_THREAD_LIMIT", 2));
+    private static final int CRAWLER_THREAD_LIMIT = Math.max(1, EnvUtils.getInt("BATCH_CRAWLER_THREAD_LIMIT", 4));
+    private static final long AGING_PAGES_PER_MINUTE = Math.max(0, EnvUtils.getLong("PACKER_AGING", 100));
+    private static final boolean PIPELINE = EnvUtils.getBoolean("BATCH_PIPELINE", false);
+    private static final int PIPELINE_QUEUE_SIZE = Math.max(1, EnvUtils.getInt("BATCH_PIPELINE_QUEUE", 1000));
+    private static final boolean RECOVERY_REQUEUE = !"cleanup".equalsIgnoreCase(EnvUtils.getString("BATCH_RECOVERY", "requeue"));
+
+    private static final Timer CRAWL_TIMER = MetricsUtils.timer("holly.batch.crawl", "Crawl time of batch hierarchy", "outcome", "success");
+    private static final Timer REJECTED_CRAWL_TIMER = MetricsUtils.timer("holly.batch.crawl", "Crawl time of batch hierarchy", "outcome", "rejected");
+    private static final Timer QUEUE_WAIT_TIMER = MetricsUtils.timer("holly.batch.queue.wait", "Time crawled batch waits for packer");
+    private static final Timer PACK_TIMER = MetricsUtils.timer("holly.batch.pack", "Packing time of batch", "outcome", "success");
+    private static final Timer FAILED_PACK_TIMER = MetricsUtils.timer("holly.batch.pack", "Packing time of batch", "outcome", "error");
+
+    private static final String[] MARKER_SUFFIXES = {
+            ImageExtractor.SEARCH_SUFFIX, ImageExtractor.WAITING_SUFFIX, ImageExtractor.PACKING_SUFFIX};
+
+    private final ExecutorService crawlPool = Executors.newFixedThreadPool(CRAWLER_THREAD_LIMIT, r -> {
+        var t = new Thread(r, "batch-crawler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final PriorityBlockingQueue<PackJob> packQueue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    //archive names of batches being processed, guarded by itself
+    private final Set<String> active = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger packing = new AtomicInteger(0);
+
+    private BatchScheduler() {
+        MetricsUtils.gauge("holly.batch.queue.depth", "Crawled batches waiting for packer", packQueue, PriorityBlockingQueue::size);
+        MetricsUtils.gauge("holly.batch.active", "Batches being crawled, waiting or packed", active, Set::size);
+        MetricsUtils.gauge("holly.batch.packing", "Batches being packed", packing, AtomicInteger::get);
+
+        for (int i = 0; i < PACKER_THREAD_LIMIT; i++) {
+            var t = new Thread(this::packLoop, "batch-packer-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public static BatchScheduler getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Journals the batch and starts crawl of its hierarchy. Search status file is created right away, so that batch
+     * waiting for a crawler is listed and its name is taken.
+     *
+     * @param packer batch to be processed
+     * @throws IllegalArgumentException when batch of the same name is already being processed
+     */
+    void submit(Packer packer) {
+        var zipName = packer.getZipFile().getName();
+
+        if (!active.add(zipName)) {
+            throw new IllegalArgumentException("File: " + zipName + " already exists");
+        }
+
+        var searchFile = Packer.createStatusFile(packer.getZipFile(), ImageExtractor.SEARCH_SUFFIX);
+
+        try {
+            searchFile.createNewFile();
+            packer.getImageExtractor().getBatchRegistry().update(searchFile);
+        } catch (IOException e) {
+            //batch is still known to the scheduler, see isActive
+            logger.warning("Could not create searching notification file.");
+        }
+
+        getJournal(packer).add(zipName, packer.getConfig());
+        packer.getProgress().register();
+
+        crawlPool.execute(() -> {
+            if (PIPELINE) {
+                crawlPipelined(packer);
+            } else {
+                crawl(packer);
+            }
+        });
+    }
+
+    /**
+     * @param zipName archive name of the batch
+     * @return true if the batch is being crawled, waits for packer or is being packed
+     */
+    public boolean isActive(String zipName) {
+        return active.contains(zipName);
+    }
+
+    private void crawl(Packer packer) {
+        long start = System.nanoTime();
+
+        try {
+            var root = packer.crawl();
+
+            if (root == null) {
+                REJECTED_CRAWL_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                finish(packer);
+                return;
+            }
+
+            CRAWL_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            queue(packer, root, null);
+        } catch (RuntimeException e) {
+            logger.severe("Crawl of batch " + packer.getZipFile().getName() + " failed. Reason: " + e);
+            packer.getImageExtractor().createReportFile(packer.getZipFile().getName(), "Could not search document hierarchy.");
+            finish(packer);
+        }
+    }
+
+    /**
+     * Crawls batch packed while being crawled, the batch is finished by packer once it is queued for packing,
+     * unless it is rejected while still waiting
+     */
+    private void crawlPipelined(Packer packer) {
+        long start = System.nanoTime();
+        var pipeline = new PagePipeline(PIPELINE_QUEUE_SIZE);
+        var job = new AtomicReference<PackJob>();
+        boolean crawled;
+
+        try {
+            crawled = packer.crawl(pipeline, () -> job.set(queue(packer, null, pipeline)));
+        } catch (RuntimeException e) {
+            logger.severe("Crawl of batch " + packer.getZipFile().getName() + " failed. Reason: " + e);
+            packer.getImageExtractor().getCrawlBudget().cancel("Could not search document hierarchy.");
+            packer.getImageExtractor().createReportFile(packer.getZipFile().getName(), "Could not search document hierarchy.");
+            pipeline.abort("Could not search document hierarchy.");
+            crawled = false;
+        }
+
+        (crawled ? CRAWL_TIMER : REJECTED_CRAWL_TIMER).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        if (job.get() == null) {
+            finish(packer);
+        } else if (!crawled && packQueue.remove(job.get())) {
+            removeWaitFile(packer);
+            finish(packer);
+        }
+    }
+
+    /**
+     * Queues batch for packing
+     *
+     * @param packer batch to be packed
+     * @param root crawled tree, null for pipelined batch
+     * @param pipeline pages of pipelined batch, null for crawled tree
+     * @return queued job
+     */
+    private PackJob queue(Packer packer, TreeNode root, PagePipeline pipeline) {
+        var waitFile = Packer.createStatusFile(packer.getZipFile(), ImageExtractor.WAITING_SUFFIX);
+
+        try {
+            waitFile.createNewFile();
+            packer.getImageExtractor().getBatchRegistry().update(waitFile);
+        } catch (IOException e) {
+            //status file is not critical therefore we do not rethrow the exception
+            logger.warning("Could not create waiting notification file.");
+        }
+
+        packer.getProgress().setPhase("waiting");
+
+        var job = new PackJob(packer, root, pipeline, sequence.incrementAndGet());
+        packQueue.add(job);
+
+        return job;
+    }
+
+    private static void removeWaitFile(Packer packer) {
+        var waitFile = Packer.createStatusFile(packer.getZipFile(), ImageExtractor.WAITING_SUFFIX);
+        waitFile.delete();
+        packer.getImageExtractor().getBatchRegistry().update(waitFile);
+    }
+
+    private void packLoop() {
+        while (true) {
+            PackJob job;
+
+            try {
+                job = packQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            QUEUE_WAIT_TIMER.record(start - job.queued, TimeUnit.NANOSECONDS);
+
+            removeWaitFile(job.packer);
+            packing.incrementAndGet();
+
+            try {
+                if (job.pipeline != null) {
+                    job.packer.pack(job.pipeline);
+                } else {
+                    job.packer.pack(job.root);
+                }
+            } catch (RuntimeException e) {
+                logger.severe("Packing of batch " + job.packer.getZipFile().getName() + " failed. Reason: " + e);
+                job.packer.getImageExtractor().createReportFile(job.packer.getZipFile().getName(), "Could not create zip archive.");
+            } finally {
+                packing.decrementAndGet();
+                (job.packer.getZipFile().isFile() ? PACK_TIMER : FAILED_PACK_TIMER).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                finish(job.packer);
+            }
+        }
+    }
+
+    private void finish(Packer packer) {
+        var zipName = packer.getZipFile().getName();
+        var searchFile = Packer.createStatusFile(packer.getZipFile(), ImageExtractor.SEARCH_SUFFIX);
+
+        //created by submit, left behind when crawl failed before it took over
+        if (searchFile.delete()) {
+            packer.getImageExtractor().getBatchRegistry().update(searchFile);
+        }
+
+        getJournal(packer).remove(zipName);
+        active.remove(zipName);
+        packer.getProgress().unregister();
+    }
+
+    /**
+     * Recovers batches interrupted by restart. Journaled batches are processed again or reported as interrupted
+     * depending on BATCH_RECOVERY, stranded status files of batches which were not journaled are replaced by report.
+     *
+     * @param imageExtractor extractor providing BATCH_PATH
+     */
+    public void recover(ImageExtractor imageExtractor) {
+        var packPath = imageExtractor.getPackPath();
+        var journaled = new BatchJournal(packPath).load();
+
+        for (var batch : journaled.entrySet()) {
+            var zipName = batch.getKey();
+            var zipFile = packPath.resolve(zipName).toFile();
+
+            if (active.contains(zipName)) {
+                continue;
+            }
+
+            removeMarkers(imageExtractor, zipFile);
+
+            //finished before the journal entry was removed
+            if (zipFile.exists() || Packer.createStatusFile(zipFile, ImageExtractor.STATUS_SUFFIX).exists()) {
+                new BatchJournal(packPath).remove(zipName);
+                continue;
+            }
+
+            if (RECOVERY_REQUEUE) {
+                logger.info("Resubmitting batch interrupted by restart: " + zipName);
+                submit(new Packer(new ImageExtractor(), zipFile, batch.getValue()));
+            } else {
+                logger.info("Removing batch interrupted by restart: " + zipName);
+                imageExtractor.createReportFile(zipName, "Batch was interrupted by restart.");
+                new BatchJournal(packPath).remove(zipName);
+            }
+        }
+
+        //status files of batches without journal entry
+        var files = packPath.toFile().listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (var file : files) {
+            for (var suffix : MARKER_SUFFIXES) {
+                var name = file.getName();
+
+                if (!name.endsWith(".zip" + suffix)) {
+                    continue;
+                }
+
+                var zipName = name.substring(0, name.length() - suffix.length());
+
+                if (active.contains(zipName) || journaled.containsKey(zipName)) {
+                    continue;
+                }
+
+                logger.info("Removing stranded status file: " + name);
+                file.delete();
+                imageExtractor.getBatchRegistry().update(file);
+                imageExtractor.createReportFile(zipName, "Batch was interrupted by restart.");
+            }
+        }
+    }
+
+    private static void removeMarkers(ImageExtractor imageExtractor, File zipFile) {
+        for (var suffix : MARKER_SUFFIXES) {
+            var marker = Packer.createStatusFile(zipFile, suffix);
+            marker.delete();
+            imageExtractor.getBatchRegistry().update(marker);
+        }
+    }
+
+    /**
+     * Effective priority of waiting batch is its page count minus aging for every minute waited. All waiting batches
+     * age at the same rate, therefore their order is fixed by the time of queueing: batch queued later counts aging
+     * of the minutes the earlier one has waited more.
+     *
+     * @param pageCount pages of the batch
+     * @param queuedMillis time of queueing
+     * @param agingPagesPerMinute pages by which priority rises every minute of waiting
+     * @return sort key, batch with lower one is packed first
+     */
+    static double getPriority(long pageCount, long queuedMillis, long agingPagesPerMinute) {
+        return pageCount + agingPagesPerMinute * (queuedMillis / 60000.0);
+    }
+
+    private static BatchJournal getJournal(Packer packer) {
+        return new BatchJournal(packer.getZipFile().toPath().getParent());
+    }
+
+    /**
+     * Crawled batch waiting for packer, pipelined batch is being crawled
+     */
+    private static class PackJob implements Comparable<PackJob> {
+        private final Packer packer;
+        private final TreeNode root;
+        private final PagePipeline pipeline;
+        private final long sequence;
+        private final double priority;
+        private final long queued = System.nanoTime();
+
+        private PackJob(Packer packer, TreeNode root, PagePipeline pipeline, long sequence) {
+            this.packer = packer;
+            this.root = root;
+            this.pipeline = pipeline;
+            this.sequence = sequence;
+
+            this.priority = getPriority(packer.getPageCount(), System.currentTimeMillis(), AGING_PAGES_PER_MINUTE);
+        }
+
+        @Override
+        public int compareTo(PackJob o) {
+            int result = Double.compare(priority, o.priority);
+
+            return result != 0 ? result : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final BatchScheduler INSTANCE = new BatchScheduler();
+    }
+}
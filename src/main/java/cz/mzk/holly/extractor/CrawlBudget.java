@@ -0,0 +1,180 @@
+package cz.mzk.holly.extractor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Page budget and outcome of single crawl. Pages are reserved as soon as their list is known, the first reservation
+ * over the limit cancels the whole crawl: tracked tasks and Fedora requests are cancelled and crawl tasks stop
+ * at their next check, so that rejected batch does not keep loading Fedora. Crawl is cancelled the same way
+ * when its deadline passes.
+ *
+ * Objects which could not be crawled completely are recorded, so that only they have to be requested again.
+ *
+ * @author kremlacek
+ */
+class CrawlBudget {
+
+    private static final Logger logger = Logger.getLogger(CrawlBudget.class.getName());
+
+    private final int pageLimit;
+    private final AtomicInteger pages = new AtomicInteger(0);
+    private final Set<Future<?>> tracked = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<String> cancellation = new CompletableFuture<>();
+
+    //uuid to reason, guarded by itself
+    private final Map<String, String> incomplete = new LinkedHashMap<>();
+
+    private volatile String cancelReason;
+
+    /**
+     * @param pageLimit maximum count of pages of the crawl
+     */
+    CrawlBudget(int pageLimit) {
+        this.pageLimit = pageLimit;
+    }
+
+    /**
+     * Reserves pages of single object, cancels the crawl if the limit is exceeded
+     *
+     * @param count count of pages listed by the object
+     * @return false if the crawl is cancelled and pages should not be resolved
+     */
+    boolean reserve(int count) {
+        if (isCancelled()) {
+            return false;
+        }
+
+        if (pages.addAndGet(count) > pageLimit) {
+            cancel("Page count over limit (" + pageLimit + ").");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Cancels the crawl and all tracked work, only the first reason is kept
+     *
+     * @param reason reason reported to the user
+     */
+    synchronized void cancel(String reason) {
+        if (cancelReason != null) {
+            return;
+        }
+
+        cancelReason = reason;
+        logger.info("Crawl cancelled, " + tracked.size() + " tasks and requests in flight. Reason: " + reason);
+
+        for (var future : tracked) {
+            future.cancel(true);
+        }
+
+        tracked.clear();
+        cancellation.complete(reason);
+    }
+
+    /**
+     * @return future completed with reason once the crawl is cancelled
+     */
+    CompletableFuture<String> whenCancelled() {
+        return cancellation;
+    }
+
+    /**
+     * Records object whose subtree is missing in the crawled tree
+     *
+     * @param uuid uuid of the object
+     * @param reason reason of failure
+     */
+    void recordIncomplete(String uuid, String reason) {
+        synchronized (incomplete) {
+            incomplete.putIfAbsent(uuid, reason);
+        }
+    }
+
+    /**
+     * Records object whose crawl was stopped by cancellation
+     *
+     * @param uuid uuid of the object
+     */
+    void recordCancelled(String uuid) {
+        recordIncomplete(uuid, cancelReason != null ? cancelReason : "Cancelled.");
+    }
+
+    /**
+     * @return objects which could not be crawled mapped to reasons in order of failures
+     */
+    Map<String, String> getIncomplete() {
+        synchronized (incomplete) {
+            return new LinkedHashMap<>(incomplete);
+        }
+    }
+
+    /**
+     * Registers work to be cancelled together with the crawl, work tracked after cancellation is cancelled at once
+     *
+     * @param future task or request of the crawl
+     * @param <T> type of the future
+     * @return the same future
+     */
+    <T extends Future<?>> T track(T future) {
+        tracked.add(future);
+
+        if (isCancelled()) {
+            tracked.remove(future);
+            future.cancel(true);
+        }
+
+        return future;
+    }
+
+    void untrack(Future<?> future) {
+        tracked.remove(future);
+    }
+
+    /**
+     * @throws CancellationException when the crawl is cancelled
+     */
+    void checkCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException(cancelReason);
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    /**
+     * @return true if the crawl was cancelled because of page limit
+     */
+    boolean isExceeded() {
+        return pages.get() > pageLimit;
+    }
+
+    /**
+     * @return reason of cancellation, null if the crawl is not cancelled
+     */
+    String getCancelReason() {
+        return cancelReason;
+    }
+
+    int getPageLimit() {
+        return pageLimit;
+    }
+
+    /**
+     * @return count of pages reserved by crawled objects
+     */
+    int getReservedPages() {
+        return pages.get();
+    }
+}
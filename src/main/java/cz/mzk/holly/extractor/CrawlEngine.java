@@ -0,0 +1,91 @@
+package cz.mzk.holly.extractor;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.model.TreeNode;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+/**
+ * Work stealing pool shared by crawls of all batches. Titles are submitted as root tasks, hierarchical
+ * objects (periodicals, volumes) expand their children as parallel subtasks.
+ *
+ * @author kremlacek
+ */
+class CrawlEngine {
+
+    private static final Logger logger = Logger.getLogger(CrawlEngine.class.getName());
+
+    private static final int CRAWL_PARALLELISM = Math.max(1,
+            EnvUtils.getInt("CRAWL_PARALLELISM", Math.max(4, Runtime.getRuntime().availableProcessors())));
+
+    private static final ForkJoinPool crawlPool = new ForkJoinPool(CRAWL_PARALLELISM);
+
+    /**
+     * Submits root crawl task
+     *
+     * @param task task to be executed within crawl pool
+     * @return submitted task
+     */
+    static ForkJoinTask<?> submit(Runnable task) {
+        return crawlPool.submit(task);
+    }
+
+    /**
+     * Processes supplied trees in parallel and waits until all of them are finished. Trees should be created
+     * in their final order before calling this method, subtree order therefore does not depend on scheduling.
+     *
+     * Failure of a tree does not stop its siblings, failed tree is recorded as incomplete in the crawl budget.
+     *
+     * @param imageExtractor extractor processing the trees
+     * @param trees trees to be processed
+     * @param cfg processing configuration
+     */
+    static void processAll(ImageExtractor imageExtractor, List<TreeNode> trees, Packer.Config cfg) {
+        var tasks = new ArrayList<CrawlTask>(trees.size());
+
+        for (var tree : trees) {
+            tasks.add(new CrawlTask(imageExtractor, tree, cfg));
+        }
+
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            crawlPool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+    private static class CrawlTask extends RecursiveAction {
+        private final ImageExtractor imageExtractor;
+        private final TreeNode tree;
+        private final Packer.Config cfg;
+
+        private CrawlTask(ImageExtractor imageExtractor, TreeNode tree, Packer.Config cfg) {
+            this.imageExtractor = imageExtractor;
+            this.tree = tree;
+            this.cfg = cfg;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                imageExtractor.processTree(tree, cfg);
+            } catch (CancellationException e) {
+                imageExtractor.getCrawlBudget().recordCancelled(tree.getName());
+            } catch (IOException | RuntimeException e) {
+                logger.warning("Processing tree: " + tree.getName() + " failed. Reason: " + e.getMessage());
+                imageExtractor.getCrawlBudget().recordIncomplete(tree.getName(), e.getMessage());
+            }
+        }
+    }
+}
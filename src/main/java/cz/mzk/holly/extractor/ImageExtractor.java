@@ -1,9 +1,10 @@
 package cz.mzk.holly.extractor;
 
-import cz.mzk.holly.DocumentUtils;
-import cz.mzk.holly.FileUtils;
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.fedora.FedoraHttpClient;
 import cz.mzk.holly.fedora.FedoraRESTConnector;
-import cz.mzk.holly.model.Batch;
+import cz.mzk.holly.fedora.ResourceIndexClient;
+import cz.mzk.holly.model.BatchPage;
 import cz.mzk.holly.model.TreeNode;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -11,18 +12,21 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 public class ImageExtractor {
     // ToDo: Solve boilerplate code.
@@ -30,20 +34,33 @@ public class ImageExtractor {
 
     private static final boolean DEBUG = false;
 
-    private static final String STATUS_SUFFIX = "_e";
+    public static final String STATUS_SUFFIX = "_e";
     public static final String PACKING_SUFFIX = "_p";
     public static final String SEARCH_SUFFIX = "_s";
     public static final String WAITING_SUFFIX = "_w";
 
-    public static final int PAGE_LIMIT = 2000;
+    public static final int PAGE_LIMIT = EnvUtils.getInt("PAGE_LIMIT", 2000);
+
+    private static final int PAGE_RESOLVE_CONCURRENCY = Math.max(1, EnvUtils.getInt("PAGE_RESOLVE_CONCURRENCY", 8));
+
+    private static final int RANGE_SEARCH_PROBES = Math.max(1, EnvUtils.getInt("RANGE_SEARCH_PROBES", 3));
+
+    private static final boolean RISEARCH_ENABLED = EnvUtils.getBoolean("FEDORA_RISEARCH", false);
+    private static final int RISEARCH_PAGE_SIZE = EnvUtils.getInt("FEDORA_RISEARCH_PAGE_SIZE", 1000);
 
     private final String BASE_PATH_MZK;
     private final String BASE_PATH_NDK;
     private final Path PACK_PATH;
 
     private final FedoraRESTConnector fedora = new FedoraRESTConnector();
+    private final ResourceIndexClient resourceIndex = RISEARCH_ENABLED
+            ? new ResourceIndexClient(FedoraHttpClient.getInstance(), RISEARCH_PAGE_SIZE)
+            : null;
 
     private final AtomicInteger pageCounter = new AtomicInteger(0);
+    private final AtomicInteger objectCounter = new AtomicInteger(0);
+
+    private volatile CrawlBudget crawlBudget = new CrawlBudget(PAGE_LIMIT);
 
     public ImageExtractor() {
         if (DEBUG) {
@@ -76,107 +93,95 @@ public class ImageExtractor {
     }
 
     /**
-     * Lists all batches present in PACK_PATH with their status
+     * Lists batches present in PACK_PATH with their status
      *
-     * @return batchlist in PACK_PATH
+     * @param page index of the page starting at 0
+     * @param size count of batches on the page
+     * @param sort order of the list, see {@link BatchRegistry.Sort}
+     * @param descending true for descending order
+     * @return page of batchlist in PACK_PATH
      */
-    public List<Batch> listBatches() {
-        var files = PACK_PATH.toFile().listFiles();
-        var batches = new LinkedList<Batch>();
-
-        if (files == null) {
-            throw new IllegalArgumentException("File listing returned null! Check PACK_PATH variable.");
-        }
-
-        for (File f : files) {
-            if (!f.isFile() || !f.getName().contains(".zip")) {
-                continue;
-            }
-
-            if (f.getName().toLowerCase().endsWith(".zip")) {
-                batches.add(new Batch(f.getName(), "ok", FileUtils.humanReadableByteCount(f.length(), true)));
-            } else if (f.getName().toLowerCase().endsWith(".zip" + PACKING_SUFFIX)) {
-                batches.add(new Batch(f.getName(), "packing", FileUtils.humanReadableByteCount(f.length(), true)));
-            } else if (f.getName().toLowerCase().endsWith(".zip" + SEARCH_SUFFIX)) {
-                batches.add(new Batch(f.getName(), "searching", "-"));
-            } else if (f.getName().toLowerCase().endsWith(".zip" + WAITING_SUFFIX)) {
-                batches.add(new Batch(f.getName(), "waiting", "-"));
-            } else {
-                String status;
-
-                try {
-                    var lines = Files.readAllLines(f.toPath());
-
-                    status = lines.size() != 0 ? Files.readAllLines(f.toPath()).get(0) : "nok";
-                } catch (IOException e) {
-                    logger.severe("Could not read status file. Reason: " + e.getMessage());
-                    status = "unknown";
-                }
-
-                batches.add(new Batch(f.getName(), status, "-"));
-            }
-        }
+    public BatchPage listBatches(int page, int size, String sort, boolean descending) {
+        return getBatchRegistry().list(page, size, BatchRegistry.Sort.parse(sort), descending);
+    }
 
-        return batches;
+    /**
+     * @return registry of batches in PACK_PATH
+     */
+    public BatchRegistry getBatchRegistry() {
+        return BatchRegistry.getInstance(PACK_PATH);
     }
 
     /**
-     * Loads path on imageserver for specified uuid
+     * Loads path on imageserver for specified uuid asynchronously
      *
      * @param uuid uuid of object containing image datastreams
-     * @return path on imageserver if object contains an imagelink, null otherwise
+     * @param knownTilesUrls tiles-urls already loaded from resource index, RELS-EXT is loaded for pages not present
+     * @return future completed with path on imageserver if object contains an imagelink, empty string if it does not
+     * and null if RELS-EXT could not be loaded, such page is recorded as incomplete
      */
-    private String getImagePath(String uuid) {
-        String imageUrl;
+    private CompletableFuture<String> getImagePathAsync(String uuid, Map<String, String> knownTilesUrls) {
+        if (!hasUuidPrefix(uuid)) {
+            return CompletableFuture.completedFuture("");
+        }
 
-        try {
-            if (hasUuidPrefix(uuid))
-                //cannot check existance
-                imageUrl = fedora.getImgAddressFromRels(uuid, false);
-            else
-                return "";
-        } catch (IOException e) {
-            logger.severe("Could not load information from RELS-EXT. Reason: " + e.getMessage());
-            return null;
+        if (knownTilesUrls.containsKey(uuid)) {
+            var imageUrl = FedoraRESTConnector.validateImageserverAddress(uuid, knownTilesUrls.get(uuid));
+
+            return CompletableFuture.completedFuture(imageUrl == null ? "" : getPhysicalPath(imageUrl));
         }
 
-        return getPhysicalPath(imageUrl);
+        var budget = crawlBudget;
+        var relsExt = fedora.getRelsExtAsync(uuid);
+
+        return FedoraHttpClient.propagateCancel(relsExt, relsExt
+                .thenApply(rels -> {
+                    //cannot check existance
+                    var imageUrl = FedoraRESTConnector.getImageserverAddress(uuid, rels);
+
+                    return imageUrl == null ? "" : getPhysicalPath(imageUrl);
+                })
+                .exceptionally(e -> {
+                    var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+                    if (!(cause instanceof CancellationException)) {
+                        //cancelled pages are reported by their parent
+                        logger.severe("Could not load information from RELS-EXT. Reason: " + cause.getMessage());
+                        budget.recordIncomplete(uuid, cause.getMessage());
+                    }
+
+                    return null;
+                }));
     }
 
     /**
      * Processes supplied tree object, filling its information about structure and pages.
      *
-     * Tree is not being processed if pageCounter is over PAGE_LIMIT
+     * Processing stops as soon as the crawl is cancelled, e.g. when its page budget is exceeded
      *
      * @param tree tree to be processed
      * @param cfg processing configuration
      * @throws IOException
-     * @throws ParserConfigurationException
-     * @throws SAXException
+     * @throws java.util.concurrent.CancellationException when the crawl was cancelled
      */
-    public void processTree(TreeNode tree, Packer.Config cfg) throws IOException, ParserConfigurationException, SAXException {
-
-        if (pageCounter.get() > PAGE_LIMIT) {
-            logger.info("Skipping tree processing. Passed page limit.");
-            return;
-        }
-
-        var model = getFedoraRDFResourceFromRels(tree.getName(), "fedora-model:hasModel");
+    public void processTree(TreeNode tree, Packer.Config cfg) throws IOException {
+        var budget = crawlBudget;
+        budget.checkCancelled();
 
-        if (model.size() != 1) {
-            model = getFedoraRDFResourceFromRels(tree.getName(), "hasModel");
+        var rels = await(budget, fedora.getRelsExtAsync(tree.getName()));
 
-            if (model.size() != 1) {
-                throw new IllegalStateException("Could not load model from RELS-EXT for uuid: " + tree.getName());
-            }
+        if (rels.getModel() == null) {
+            throw new IllegalStateException("Could not load model from RELS-EXT for uuid: " + tree.getName());
         }
 
+        objectCounter.incrementAndGet();
+
         List<String> pageUuids = null;
 
-        switch (model.get(0)) {
+        switch (rels.getModel()) {
             //for hierarchical models process their structure
             case "model:periodical":
-                var volumeUuids = getUUIDsFromRelsExt(tree, "kramerius:hasVolume");
+                var volumeUuids = rels.getVolumes();
 
                 //process years
                 rangeProcessTree(tree, cfg, volumeUuids, "date",
@@ -185,7 +190,7 @@ public class ImageExtractor {
 
                 break;
             case "model:periodicalvolume":
-                var itemUuids = getUUIDsFromRelsExt(tree, "kramerius:hasItem");
+                var itemUuids = rels.getItems();
 
                 //process issues
                 rangeProcessTree(tree, cfg, itemUuids, "number", cfg.getFromIssue(), cfg.getToIssue());
@@ -196,21 +201,26 @@ public class ImageExtractor {
             case "model:monograph":
             case "model:map":
             case "model:periodicalitem":
-                pageUuids = getUUIDsFromRelsExt(tree, "kramerius:hasPage");
+                pageUuids = rels.getPages();
 
                 //filter range
                 if (cfg.getFromPage() != null || cfg.getToPage() != null) {
                     pageUuids = pageUuids.subList(
                             cfg.getFromPage() != null ? cfg.getFromPage() - 1 : 0,
-                            cfg.getToPage() != null ? cfg.getToPage() : 0);
+                            cfg.getToPage() != null ? cfg.getToPage() : pageUuids.size());
                 }
 
                 //TODO: process attachments
 
                 break;
             case "model:page":
-                pageUuids = Collections.singletonList(tree.getName());
-                break;
+                //page has no pages of its own to be searched in resource index
+                if (!budget.reserve(1)) {
+                    throw new CancellationException(budget.getCancelReason());
+                }
+
+                resolvePages(tree, Collections.singletonList(tree.getName()), Collections.emptyMap());
+                return;
             default:
                 //recursive loading is unsafe - f.e.: export entire periodical
                 //JK: recursive search is safe, blocking should be done when pages are countable, e.g. 1000 page limit
@@ -219,21 +229,99 @@ public class ImageExtractor {
                 return;
         }
 
-        //get page paths and store them to tree
+        //get page paths and store them to tree, oversized crawl is rejected before its pages are resolved
         if (pageUuids != null) {
-            for (String page : pageUuids) {
-                String path = getImagePath(page);
-                if (page != null && !path.isEmpty()) {
+            if (!budget.reserve(pageUuids.size())) {
+                throw new CancellationException(budget.getCancelReason());
+            }
+
+            resolvePages(tree, pageUuids, loadPageTilesUrls(tree.getName()));
+        }
+    }
+
+    /**
+     * Waits for Fedora response, the request is cancelled together with the crawl
+     */
+    private static <T> T await(CrawlBudget budget, CompletableFuture<T> future) throws IOException {
+        budget.track(future);
+
+        try {
+            return FedoraHttpClient.await(future);
+        } finally {
+            budget.untrack(future);
+        }
+    }
+
+    /**
+     * Loads tiles-urls of all pages of the object from resource index if enabled
+     *
+     * @param uuid uuid of object containing pages
+     * @return map of page uuid to tiles-url, empty if resource index is disabled or the query failed
+     */
+    private Map<String, String> loadPageTilesUrls(String uuid) {
+        if (resourceIndex == null) {
+            return Collections.emptyMap();
+        }
+
+        try {
+            return resourceIndex.getPageTilesUrls(uuid);
+        } catch (IOException e) {
+            //pages are resolved one by one from their RELS-EXT
+            logger.warning("Resource index query for " + uuid + " failed, falling back to RELS-EXT. Reason: " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Resolves image paths of pages with at most PAGE_RESOLVE_CONCURRENCY requests in flight and stores them
+     * to the tree in the original page order.
+     *
+     * @param tree tree the pages belong to
+     * @param pageUuids ordered list of page uuids
+     * @param knownTilesUrls tiles-urls already loaded from resource index
+     * @throws CancellationException when the crawl is cancelled before all pages are resolved
+     */
+    private void resolvePages(TreeNode tree, List<String> pageUuids, Map<String, String> knownTilesUrls) {
+        var budget = crawlBudget;
+        var window = new ArrayDeque<CompletableFuture<String>>();
+        var it = pageUuids.iterator();
+
+        try {
+            while (it.hasNext() || !window.isEmpty()) {
+                while (it.hasNext() && window.size() < PAGE_RESOLVE_CONCURRENCY) {
+                    window.add(budget.track(getImagePathAsync(it.next(), knownTilesUrls)));
+                }
+
+                budget.checkCancelled();
+
+                //wait for the oldest request so that pages are stored in order, throws CancellationException
+                var next = window.poll();
+                String path;
+
+                try {
+                    path = next.join();
+                } finally {
+                    budget.untrack(next);
+                }
+
+                if (path != null && !path.isEmpty()) {
                     //page found, add to tree increment pageCounter
                     tree.addPagePath(path);
                     pageCounter.addAndGet(1);
                 }
             }
+        } finally {
+            //stop requests that are not needed anymore
+            window.forEach(f -> {
+                budget.untrack(f);
+                f.cancel(false);
+            });
         }
     }
 
     /**
-     * Processes list of provided uuids and if provided checks their mods value for specified element tag value within specified range
+     * Processes list of provided uuids and if provided checks their mods value for specified element tag value within specified range.
+     * Selected subtrees are processed in parallel.
      *
      * @param tree parent tree node
      * @param cfg packer configuration
@@ -242,8 +330,6 @@ public class ImageExtractor {
      * @param startValue starting value of range
      * @param endValue ending value of range
      * @throws IOException
-     * @throws ParserConfigurationException
-     * @throws SAXException
      */
     private void rangeProcessTree(
             TreeNode tree,
@@ -252,51 +338,57 @@ public class ImageExtractor {
             String elementName,
             String startValue,
             String endValue
-    ) throws IOException, ParserConfigurationException, SAXException {
-        boolean reachedStartingVolume = false;
+    ) throws IOException {
+        var selectedUuids = selectRange(itemUuids, elementName, startValue, endValue);
 
-        //process subitems
-        for (String itemUuid : itemUuids) {
+        //create subtrees in order first so that output order does not depend on crawl scheduling
+        var subTrees = new ArrayList<TreeNode>(selectedUuids.size());
 
-            String elementValue = null;
-
-            //check requested range start if range is specified
-            if ((startValue != null && !startValue.equals("")) || (endValue != null && !startValue.equals(""))) {
-                elementValue = fedora.getModsFirstElement(itemUuid, elementName);
-            }
+        for (String itemUuid : selectedUuids) {
+            subTrees.add(tree.createSubTree(itemUuid));
+        }
 
-            if (startValue != null && !startValue.equals("") && !reachedStartingVolume) {
-                if (elementValue.equals(startValue)) {
-                    //signal to process every following subtree because we reached requested range
-                    reachedStartingVolume = true;
-                } else {
-                    //skip processing subtree, since it is before requested range
-                    continue;
-                }
-            }
+        CrawlEngine.processAll(this, subTrees, cfg);
+    }
 
-            var subTree = tree.createSubTree(itemUuid);
-            processTree(subTree, cfg);
+    /**
+     * Selects uuids within requested range, the range starts with first item with element value equal to startValue
+     * and ends with first following item with value equal to endValue. Range bounds are searched, see {@link RangeSelector}.
+     *
+     * @param itemUuids ordered list of uuids
+     * @param elementName name of mods element to be checked
+     * @param startValue starting value of range, whole list is selected if null or empty
+     * @param endValue ending value of range, list is selected till its end if null or empty
+     * @return selected uuids in original order
+     * @throws IOException
+     */
+    private List<String> selectRange(List<String> itemUuids, String elementName, String startValue, String endValue) throws IOException {
+        var budget = crawlBudget;
 
-            //check requested range end
-            if (endValue != null && !endValue.equals("") && elementValue.equals(endValue)) {
-                //reached last issue, stop processing next issue
-                break;
-            }
-        }
-    }
+        var selector = new RangeSelector(uuid -> {
+            var value = budget.track(fedora.getModsFirstElementAsync(uuid, elementName));
+            value.whenComplete((v, e) -> budget.untrack(value));
+            return value;
+        }, RANGE_SEARCH_PROBES);
 
-    private List<String> getUUIDsFromRelsExt(TreeNode tree, String elementTag) throws IOException, ParserConfigurationException, SAXException {
-        var pageUuids = getFedoraRDFResourceFromRels(tree.getName(), elementTag);
+        budget.checkCancelled();
 
-        //attempt to load resources if prefix is not present
-        if (pageUuids.isEmpty() && elementTag.contains(":")) {
-            pageUuids = getFedoraRDFResourceFromRels(tree.getName(), elementTag.substring(elementTag.indexOf(":") + 1));
-        }
-        return pageUuids;
+        return selector.select(itemUuids, startValue, endValue);
     }
 
     private String getPhysicalPath(String imgUrl) {
+        return getPhysicalPath(imgUrl, BASE_PATH_MZK, BASE_PATH_NDK);
+    }
+
+    /**
+     * Maps imageserver url to path on imageserver storage, NDK images are routed by year of digitization
+     *
+     * @param imgUrl tiles-url of the page
+     * @param basePathMzk mount point of MZK storage
+     * @param basePathNdk mount point of NDK storages
+     * @return physical path of the image, empty string if url is malformed
+     */
+    static String getPhysicalPath(String imgUrl, String basePathMzk, String basePathNdk) {
         String path;
         try {
             path =  new URL(imgUrl).getPath();
@@ -333,9 +425,9 @@ public class ImageExtractor {
                     physicalPath = path.replace("NDK", "ndk2021");
                     break;
             }
-            physicalPath = Paths.get(BASE_PATH_NDK, physicalPath).toString();
+            physicalPath = Paths.get(basePathNdk, physicalPath).toString();
         } else {
-            physicalPath = Paths.get(BASE_PATH_MZK, path).toString();
+            physicalPath = Paths.get(basePathMzk, path).toString();
         }
 
         if (path.contains(".tif"))
@@ -357,25 +449,70 @@ public class ImageExtractor {
                 xml.indexOf("</" + elementTag + ">") );
     }
 
-    private List<String> getFedoraRDFResourceFromRels(String uuid, String elementTag) throws IOException, ParserConfigurationException, SAXException {
-        String xml = fedora.loadRELS(uuid);
+    CrawlBudget getCrawlBudget() {
+        return crawlBudget;
+    }
 
-        var doc = DocumentUtils.loadDocumentFromString(xml);
+    /**
+     * Starts new crawl with its own page budget, counters of the previous crawl are reset
+     *
+     * @param pageLimit maximum count of pages of the crawl
+     * @return budget of the crawl
+     */
+    CrawlBudget startCrawl(int pageLimit) {
+        pageCounter.set(0);
+        objectCounter.set(0);
+        crawlBudget = new CrawlBudget(pageLimit);
 
-        NodeList elements = doc.getElementsByTagName(elementTag);
+        return crawlBudget;
+    }
 
-        List<String> results = new LinkedList<>();
+    /**
+     * Crawls single title in the calling thread, used for archives streamed directly to the client. The crawl
+     * is stopped after BATCH_CRAWL_TIMEOUT, the same as crawl of a batch.
+     *
+     * @param cfg processing configuration with single uuid
+     * @param pageLimit crawl is stopped once the title lists more pages
+     * @return root of the tree containing processed title, null if the title has more than pageLimit pages or
+     * could not be crawled completely within the time limit
+     * @throws IOException when title could not be loaded
+     */
+    public TreeNode crawl(Packer.Config cfg, int pageLimit) throws IOException {
+        var uuid = cfg.getUuidListStr() == null ? null : cfg.getUuidListStr().replaceAll("\\s+", "");
 
-        for (int i = 0; i < elements.getLength(); i++) {
-            Element element = (Element) elements.item(i);
-            String value = element.getAttribute("rdf:resource");
+        if (!hasUuidPrefix(uuid)) {
+            throw new IllegalArgumentException("Invalid uuid: " + uuid);
+        }
 
-            String result = value.substring("info:fedora/".length());
+        var budget = startCrawl(pageLimit);
+        var root = new TreeNode("");
 
-            results.add(result);
+        var timedOut = new AtomicBoolean(false);
+        var deadline = CompletableFuture.runAsync(() -> {
+            logger.warning("Crawl of " + uuid + " did not finish within " + Packer.CRAWL_TIMEOUT + " seconds.");
+            //set before the crawl is woken up by cancellation
+            timedOut.set(true);
+            budget.cancel("Crawl time limit exceeded.");
+        }, CompletableFuture.delayedExecutor(Packer.CRAWL_TIMEOUT, TimeUnit.SECONDS));
+
+        try {
+            processTree(root.createSubTree(uuid), cfg);
+        } catch (CancellationException e) {
+            if (!budget.isExceeded() && !timedOut.get()) {
+                throw e;
+            }
+
+            return null;
+        } finally {
+            deadline.cancel(false);
         }
 
-        return results;
+        if (!budget.getIncomplete().isEmpty()) {
+            logger.warning("Crawl of " + uuid + " is incomplete: " + budget.getIncomplete());
+            return null;
+        }
+
+        return root;
     }
 
     public void batch(String name, String uuidListStr, String format) {
@@ -427,7 +564,8 @@ public class ImageExtractor {
                 parentPath.resolve(zipFile.getName() + SEARCH_SUFFIX).toFile(),
                 parentPath.resolve(zipFile.getName() + WAITING_SUFFIX).toFile());
 
-        return fileList.stream().anyMatch(File::exists);
+        //status file may be missing, e.g. when it could not be created
+        return BatchScheduler.getInstance().isActive(zipFile.getName()) || fileList.stream().anyMatch(File::exists);
     }
 
     /**
@@ -463,6 +601,7 @@ public class ImageExtractor {
         }
 
         batchFile.delete();
+        getBatchRegistry().update(batchFile);
     }
 
     public void createReportFile(String name, String msg) {
@@ -471,12 +610,28 @@ public class ImageExtractor {
             try (var writer = new BufferedWriter(new FileWriter(file, false))) {
                 writer.append(msg + "\n");
             }
+
+            getBatchRegistry().updateReport(file, msg);
         } catch (IOException e) {
             logger.severe("Could not write error report file.");
         }
     }
 
+    /**
+     * @return directory containing batches (BATCH_PATH)
+     */
+    public Path getPackPath() {
+        return PACK_PATH;
+    }
+
     public int getPageCounterValue() {
         return pageCounter.get();
     }
+
+    /**
+     * @return count of objects whose hierarchy was crawled
+     */
+    public int getObjectCounterValue() {
+        return objectCounter.get();
+    }
 }
@@ -1,162 +1,507 @@
 package cz.mzk.holly.extractor;
 
+import cz.mzk.holly.EnvUtils;
 import cz.mzk.holly.FileUtils;
+import cz.mzk.holly.MetricsUtils;
+import cz.mzk.holly.fedora.DatastreamCache;
 import cz.mzk.holly.model.TreeNode;
+import io.micrometer.core.instrument.Counter;
 import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
+ * Processes single batch in two phases, crawl of the document hierarchy and packing of found pages into archive.
+ * Phases are scheduled by {@link BatchScheduler}, in pipelined mode they overlap.
+ *
  * @author kremlacek
  */
-public class Packer implements Runnable {
+public class Packer {
 
-    private static final int PACKER_THREAD_LIMIT = 2;
-    private static final int HIERARCHY_CRAWLER_TIME_LIMIT = 60;
+    static final long CRAWL_TIMEOUT = Math.max(1, EnvUtils.getLong("BATCH_CRAWL_TIMEOUT", 60));
+    private static final long CANCEL_GRACE = 10;
+
+    //pack: pages found are packed and incomplete objects reported, reject: batch is rejected
+    private static final boolean PACK_INCOMPLETE = !EnvUtils.getString("BATCH_INCOMPLETE", "pack").equalsIgnoreCase("reject");
+
+    //titles of pipelined batch crawled at once, following titles are started as preceding ones finish
+    private static final int PIPELINE_AHEAD = Math.max(1, EnvUtils.getInt("BATCH_PIPELINE_AHEAD", 4));
+
+    //objects listed in report of incomplete batch, all of them are listed in the following lines
+    private static final int REPORT_SUMMARY_SIZE = 10;
+
+    private static final Counter INCOMPLETE_OBJECTS = MetricsUtils.counter("holly.crawl.incomplete", "Objects which could not be crawled");
 
     private static final Logger logger = Logger.getLogger(Packer.class.getName());
-    private static final Semaphore packerSemaphore = new Semaphore(PACKER_THREAD_LIMIT);
 
     private final ImageExtractor imageExtractor;
     private final File zipFile;
 
     private final Config cfg;
+    private final BatchProgress progress;
 
-    private Packer(ImageExtractor imageExtractor, File zipFile, Config cfg) {
+    //set by crawl before the last page is passed to packer
+    private volatile Map<String, String> incomplete = Collections.emptyMap();
+
+    Packer(ImageExtractor imageExtractor, File zipFile, Config cfg) {
         this.imageExtractor = imageExtractor;
         this.zipFile = zipFile;
         this.cfg = cfg;
+        this.progress = new BatchProgress(zipFile.getName(), imageExtractor);
     }
 
-    @Override
-    public void run() {
-        var es = Executors.newFixedThreadPool(4);
-        var root = new TreeNode(true, "");
+    /**
+     * Crawls hierarchies of all requested documents within CRAWL_TIMEOUT. Objects which could not be crawled
+     * (failed requests, time limit) are reported, the batch is then packed without them or rejected
+     * according to BATCH_INCOMPLETE.
+     *
+     * @return tree of found pages, null if batch ended with report file
+     */
+    TreeNode crawl() {
+        var root = new TreeNode("");
+        var budget = imageExtractor.startCrawl(ImageExtractor.PAGE_LIMIT);
 
         //create loading status file
         var loadingFile = createStatusFile(zipFile, ImageExtractor.SEARCH_SUFFIX);
+        progress.setPhase("searching");
 
         try {
             loadingFile.createNewFile();
+            imageExtractor.getBatchRegistry().update(loadingFile);
 
-            try {
-                if (cfg.getUuidListStr() == null || cfg.getUuidListStr().isEmpty()) {
-                    logger.info("No uuid set in the list");
-                    imageExtractor.createReportFile(zipFile.getName(), "No uuid set in the list.");
-                    return;
-                }
-
-                if (!cfg.getUuidListStr().contains("\n")) {
-                    logger.info("List does not contain single EOL sign");
-                }
+            var titles = createTitles(root);
 
-                String[] uuids = cfg.getUuidListStr().split("\n");
+            if (titles == null) {
+                return null;
+            }
 
-                for (String uuid : uuids) {
-                    //strip whitespaces
-                    uuid = uuid.replaceAll("\\s+", "");
+            //titles are crawled in parallel
+            titles.forEach(this::submit);
 
-                    if (!imageExtractor.hasUuidPrefix(uuid)) {
-                        imageExtractor.createReportFile(zipFile.getName(), "Invalid uuid requested.");
-                        logger.warning("Invalid uuid: " + uuid);
-                        return;
-                    }
+            var crawled = CompletableFuture.allOf(titles.stream().map(t -> t.done).toArray(CompletableFuture[]::new));
 
-                    es.submit(new TitleProcessor(imageExtractor, uuid, root, cfg));
-                }
-            } finally {
-                //close executor service so that it can't accept more requests
-                es.shutdown();
+            try {
+                //cancelled crawl wakes up the wait at once
+                CompletableFuture.anyOf(crawled, budget.whenCancelled()).get(CRAWL_TIMEOUT, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                logger.warning("Crawl did not finish within " + CRAWL_TIMEOUT + " seconds.");
+                budget.cancel("Crawl time limit exceeded.");
+            } catch (ExecutionException e) {
+                logger.severe("Crawl failed. Reason: " + e.getCause());
             }
 
-            //wait for all threads to finish
+            //cancelled tasks stop at their next check, no crawl task may outlive the batch
             try {
-                es.awaitTermination(HIERARCHY_CRAWLER_TIME_LIMIT, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                logger.severe(e.getMessage());
-                return;
+                crawled.get(CANCEL_GRACE, TimeUnit.SECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                logger.warning("Crawl tasks of " + zipFile.getName() + " did not stop within " + CANCEL_GRACE + " seconds.");
             }
 
+            logger.info("Crawl finished. " + DatastreamCache.getInstance());
+
             //check page count and exit if limit was exceeded
-            if (imageExtractor.getPageCounterValue() > ImageExtractor.PAGE_LIMIT) {
+            if (budget.isExceeded()) {
                 logger.warning("Page count over limit.");
-                imageExtractor.createReportFile(zipFile.getName(), "Page count (" + imageExtractor.getPageCounterValue() + ") over limit.");
-                return;
+                imageExtractor.createReportFile(zipFile.getName(), budget.getCancelReason());
+                return null;
             }
 
-            //check if any images have been found
-            if (root.getSubTree().isEmpty() && root.getPagePaths().isEmpty()) {
-                logger.warning("No images found.");
-                imageExtractor.createReportFile(zipFile.getName(), "No images found.");
-                return;
-            }
+            return checkIncomplete(budget, imageExtractor.getPageCounterValue() > 0) ? root : null;
         } catch (IOException e) {
             logger.warning("Could not create status file.");
             imageExtractor.createReportFile(zipFile.getName(), "Could not create status file.");
+            return null;
+        } catch (InterruptedException e) {
+            logger.severe(e.getMessage());
+            budget.cancel("Interrupted.");
+            Thread.currentThread().interrupt();
+            return null;
         } finally {
-            //remove loading file
-            if (loadingFile.exists()) {
-                loadingFile.delete();
-            }
+            removeStatusFile(loadingFile);
         }
+    }
+
+    /**
+     * Crawls hierarchies of all requested documents and streams found pages into the pipeline, so that they are
+     * packed while following titles are crawled. At most BATCH_PIPELINE_AHEAD titles are crawled at once in request
+     * order, pages of each title are put once the whole title is crawled, in request order. Packing is requested
+     * by packingReady before the first page is put.
+     *
+     * The crawl is limited and incomplete batches are handled the same way as by {@link #crawl()}, CRAWL_TIMEOUT
+     * does not include time of waiting for the writer. Batch over page limit and rejected incomplete batch abort
+     * the pipeline, the archive being packed is removed then.
+     *
+     * @param pipeline queue of pages read by packer
+     * @param packingReady queues the batch for packing
+     * @return false if batch ended with report file
+     */
+    boolean crawl(PagePipeline pipeline, Runnable packingReady) {
+        var root = new TreeNode("");
+        var budget = imageExtractor.startCrawl(ImageExtractor.PAGE_LIMIT);
+
+        var loadingFile = createStatusFile(zipFile, ImageExtractor.SEARCH_SUFFIX);
+        progress.setPhase("searching");
+
+        boolean packing = false;
 
         try {
-            //try getting lock to enter section with limited thread count execution (see packerSemaphore)
-            boolean locked = packerSemaphore.tryAcquire();
-
-            //unable to enter the section, notify user and wait
-            if (!locked) {
-                //create status file
-                var waitFile = createStatusFile(zipFile, ImageExtractor.WAITING_SUFFIX);
-
-                try {
-                    waitFile.createNewFile();
-                } catch (IOException e) {
-                    //status file is not critical therefore we do not rethrow the exception
-                    logger.warning("Could not create waiting notification file.");
+            loadingFile.createNewFile();
+            imageExtractor.getBatchRegistry().update(loadingFile);
+
+            var titles = createTitles(root);
+
+            if (titles == null) {
+                return false;
+            }
+
+            //head titles are crawled first, so that they are packed while following ones are crawled
+            var nextTitle = new AtomicInteger(0);
+
+            for (int i = 0; i < PIPELINE_AHEAD; i++) {
+                submitNext(titles, nextTitle);
+            }
+
+            var crawled = CompletableFuture.allOf(titles.stream().map(t -> t.done).toArray(CompletableFuture[]::new));
+
+            CompletableFuture.runAsync(() -> {
+                if (!crawled.isDone()) {
+                    logger.warning("Crawl did not finish within " + CRAWL_TIMEOUT + " seconds.");
+                    budget.cancel("Crawl time limit exceeded.");
                 }
+            }, CompletableFuture.delayedExecutor(CRAWL_TIMEOUT, TimeUnit.SECONDS));
 
-                //wait until permit is available
-                packerSemaphore.acquire();
+            //reorder stage, titles crawled ahead wait in the tree
+            var emitted = new HashSet<String>();
 
-                //permit acquired, delete wait file
-                if (waitFile.exists()) {
-                    waitFile.delete();
+            for (var title : titles) {
+                awaitTitle(title, budget);
+
+                if (budget.isExceeded()) {
+                    logger.warning("Page count over limit.");
+                    imageExtractor.createReportFile(zipFile.getName(), budget.getCancelReason());
+                    return abort(pipeline, budget.getCancelReason());
+                }
+
+                if (!PACK_INCOMPLETE && !budget.getIncomplete().isEmpty()) {
+                    //rejected right away, pages already packed are dropped
+                    checkIncomplete(budget, true);
+                    budget.cancel("Batch is incomplete.");
+                    return abort(pipeline, "Batch is incomplete.");
+                }
+
+                //repeated uuid is packed once, at its first position
+                if (!emitted.add(title.tree.getName())) {
+                    continue;
+                }
+
+                for (var pages = title.tree.pageIterator(); pages.hasNext(); ) {
+                    if (!packing) {
+                        //batch is waiting or packing from now on
+                        removeStatusFile(loadingFile);
+                        packingReady.run();
+                        packing = true;
+                    }
+
+                    if (!pipeline.put(pages.next())) {
+                        //packing failed and was reported by packer
+                        budget.cancel("Packing failed.");
+                        return false;
+                    }
                 }
             }
 
-            //permit acquired, continue with creating zip archive
+            logger.info("Crawl finished. " + DatastreamCache.getInstance());
+            progress.setPagesTotal(getPageCount());
+
+            if (!checkIncomplete(budget, packing)) {
+                return abort(pipeline, "Batch is incomplete.");
+            }
+
+            return pipeline.close();
+        } catch (IOException e) {
+            logger.warning("Could not create status file.");
+            imageExtractor.createReportFile(zipFile.getName(), "Could not create status file.");
+            return abort(pipeline, "Could not create status file.");
+        } catch (InterruptedException e) {
+            logger.severe(e.getMessage());
+            budget.cancel("Interrupted.");
+            Thread.currentThread().interrupt();
+            return abort(pipeline, "Interrupted.");
+        } finally {
+            removeStatusFile(loadingFile);
+        }
+    }
+
+    /**
+     * Creates subtree of every requested uuid in request order
+     *
+     * @param root tree root
+     * @return titles in request order, null if batch ended with report file
+     */
+    private List<Title> createTitles(TreeNode root) {
+        if (cfg.getUuidListStr() == null || cfg.getUuidListStr().isEmpty()) {
+            logger.info("No uuid set in the list");
+            imageExtractor.createReportFile(zipFile.getName(), "No uuid set in the list.");
+            return null;
+        }
+
+        if (!cfg.getUuidListStr().contains("\n")) {
+            logger.info("List does not contain single EOL sign");
+        }
+
+        var uuids = new ArrayList<String>();
+
+        for (String uuid : cfg.getUuidListStr().split("\n")) {
+            //strip whitespaces
+            uuid = uuid.replaceAll("\\s+", "");
+
+            if (!imageExtractor.hasUuidPrefix(uuid)) {
+                imageExtractor.createReportFile(zipFile.getName(), "Invalid uuid requested.");
+                logger.warning("Invalid uuid: " + uuid);
+                return null;
+            }
+
+            uuids.add(uuid);
+        }
+
+        var titles = new ArrayList<Title>(uuids.size());
+
+        for (var uuid : uuids) {
+            //subtrees are created in request order so that output order does not depend on crawl scheduling
+            titles.add(new Title(root.createSubTree(uuid)));
+        }
+
+        return titles;
+    }
 
-            //change zipFile name with appropriate suffix
-            var tempZipFile = createStatusFile(zipFile, ImageExtractor.PACKING_SUFFIX);
+    private void submit(Title title) {
+        var processor = new TitleProcessor(imageExtractor, title.tree, cfg);
 
+        CrawlEngine.submit(() -> {
             try {
-                FileUtils.createZipArchive(tempZipFile, root, cfg.getFormat());
-            } catch (IOException | IllegalStateException e) {
-                logger.severe(e.getMessage());
-                imageExtractor.createReportFile(zipFile.getName(), "Could not create zip archive.");
-                tempZipFile.delete();
-                return;
+                processor.run();
+            } finally {
+                title.done.complete(null);
             }
+        });
+    }
 
-            tempZipFile.renameTo(zipFile);
-        } catch (InterruptedException e) { //interruption while waiting for permit
-            logger.severe(e.getMessage());
+    /**
+     * Submits the next title not submitted yet, the following one is submitted once it is finished
+     */
+    private void submitNext(List<Title> titles, AtomicInteger next) {
+        int index = next.getAndIncrement();
+
+        if (index < titles.size()) {
+            var title = titles.get(index);
+            title.done.thenRun(() -> submitNext(titles, next));
+            submit(title);
+        }
+    }
+
+    /**
+     * Waits until the title is crawled or the crawl is cancelled, cancelled title is given CANCEL_GRACE to stop
+     */
+    private void awaitTitle(Title title, CrawlBudget budget) throws InterruptedException {
+        try {
+            CompletableFuture.anyOf(title.done, budget.whenCancelled()).get();
+
+            if (!title.done.isDone() && !budget.isExceeded()) {
+                title.done.get(CANCEL_GRACE, TimeUnit.SECONDS);
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            logger.warning("Crawl of " + title.tree.getName() + " in " + zipFile.getName() + " did not stop within " + CANCEL_GRACE + " seconds.");
+        }
+    }
+
+    /**
+     * Reports objects which could not be crawled and batch without pages
+     *
+     * @param budget finished crawl
+     * @param pagesFound true if any page was found
+     * @return false if batch ended with report file
+     */
+    private boolean checkIncomplete(CrawlBudget budget, boolean pagesFound) {
+        incomplete = budget.getIncomplete();
+
+        if (!incomplete.isEmpty()) {
+            INCOMPLETE_OBJECTS.increment(incomplete.size());
+            logger.warning("Crawl of " + zipFile.getName() + " is incomplete: " + incomplete);
+        }
+
+        //check if any images have been found
+        if (!pagesFound) {
+            logger.warning("No images found.");
+            imageExtractor.createReportFile(zipFile.getName(), incomplete.isEmpty() ? "No images found." : getIncompleteReport());
+            return false;
+        }
+
+        if (!incomplete.isEmpty() && !PACK_INCOMPLETE) {
+            imageExtractor.createReportFile(zipFile.getName(), getIncompleteReport());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Aborts pipelined batch, its report has to be written before
+     *
+     * @return false
+     */
+    private boolean abort(PagePipeline pipeline, String reason) {
+        logger.info("Pipelined batch " + zipFile.getName() + " aborted. Reason: " + reason);
+        pipeline.abort(reason);
+        return false;
+    }
+
+    /**
+     * Packs pages of crawled tree into archive
+     *
+     * @param root tree returned by crawl
+     */
+    void pack(TreeNode root) {
+        packPages(root.pageIterator());
+    }
+
+    /**
+     * Packs pages streamed by pipelined crawl into archive, the archive is removed if the crawl aborts the pipeline
+     *
+     * @param pipeline pipeline filled by {@link #crawl(PagePipeline, Runnable)}
+     */
+    void pack(PagePipeline pipeline) {
+        try {
+            packPages(pipeline);
         } finally {
-            //release permit
-            packerSemaphore.release();
+            //crawl waiting for the writer stops if packing failed, finished pipeline is not affected
+            pipeline.abort("Could not create zip archive.");
+        }
+    }
+
+    private void packPages(Iterator<String> pages) {
+        //change zipFile name with appropriate suffix
+        var tempZipFile = createStatusFile(zipFile, ImageExtractor.PACKING_SUFFIX);
+        var registry = imageExtractor.getBatchRegistry();
+
+        try {
+            tempZipFile.createNewFile();
+            registry.update(tempZipFile);
+            progress.startPacking(getPageCount());
+
+            FileUtils.createZipArchive(tempZipFile, pages, cfg.getFormat(), progress);
+        } catch (CancellationException e) {
+            //pipelined crawl was aborted and has written the report
+            logger.warning("Packing of " + zipFile.getName() + " aborted. Reason: " + e.getMessage());
+            tempZipFile.delete();
+            registry.update(tempZipFile);
+            return;
+        } catch (IOException | IllegalStateException e) {
+            logger.severe(e.getMessage());
+            imageExtractor.createReportFile(zipFile.getName(), "Could not create zip archive.");
+            tempZipFile.delete();
+            registry.update(tempZipFile);
+            return;
+        }
+
+        if (!incomplete.isEmpty()) {
+            //archive is kept, uuids to be requested again are listed next to it
+            imageExtractor.createReportFile(zipFile.getName(), getIncompleteReport());
+        }
+
+        tempZipFile.renameTo(zipFile);
+        registry.update(tempZipFile);
+        registry.update(zipFile);
+    }
+
+    /**
+     * Creates report of incomplete crawl, the first line summarizes failed objects and is shown in batch list,
+     * every following line contains one failed object and reason
+     *
+     * @return report text
+     */
+    String getIncompleteReport() {
+        var summary = incomplete.keySet().stream().limit(REPORT_SUMMARY_SIZE).collect(Collectors.joining(", "));
+
+        if (incomplete.size() > REPORT_SUMMARY_SIZE) {
+            summary += " and " + (incomplete.size() - REPORT_SUMMARY_SIZE) + " more";
+        }
+
+        var report = new StringBuilder("Incomplete, could not search: ").append(summary);
+
+        incomplete.forEach((uuid, reason) -> report.append('\n').append(uuid).append(' ').append(reason));
+
+        return report.toString();
+    }
+
+    /**
+     * @return objects which could not be crawled mapped to reasons
+     */
+    Map<String, String> getIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * @return count of pages found by crawl, used to estimate packing time
+     */
+    int getPageCount() {
+        return imageExtractor.getPageCounterValue();
+    }
+
+    BatchProgress getProgress() {
+        return progress;
+    }
+
+    File getZipFile() {
+        return zipFile;
+    }
+
+    Config getConfig() {
+        return cfg;
+    }
+
+    ImageExtractor getImageExtractor() {
+        return imageExtractor;
+    }
+
+    private void removeStatusFile(File statusFile) {
+        if (statusFile.exists()) {
+            statusFile.delete();
         }
+
+        imageExtractor.getBatchRegistry().update(statusFile);
     }
 
-    private static File createStatusFile(File archiveFile, String suffix) {
+    static File createStatusFile(File archiveFile, String suffix) {
         return archiveFile.toPath().getParent().resolve(archiveFile.getName() + suffix).toFile();
     }
 
     public static void execute(ImageExtractor imageExtractor, File zipFile, Config cfg) {
-        new Thread(new Packer(imageExtractor, zipFile, cfg)).start();
+        BatchScheduler.getInstance().submit(new Packer(imageExtractor, zipFile, cfg));
+    }
+
+    /**
+     * Requested title being crawled
+     */
+    private static class Title {
+        private final TreeNode tree;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Title(TreeNode tree) {
+            this.tree = tree;
+        }
     }
 
     public static class Config {
@@ -0,0 +1,139 @@
+package cz.mzk.holly.extractor;
+
+import cz.mzk.holly.archive.ArchivePipeline;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of page paths between crawl of pipelined batch and its archive writer. Crawl puts pages
+ * in archive order and waits while the queue is full, writer takes them as they come. Either side can abort
+ * the pipeline, waiting side of the other one then stops within POLL_INTERVAL.
+ *
+ * @author kremlacek
+ */
+class PagePipeline implements ArchivePipeline.PageStream {
+
+    private static final long POLL_INTERVAL = 100;
+
+    //marks end of pages, compared by identity
+    private static final String END = new String("");
+
+    private final BlockingQueue<String> queue;
+    private volatile String abortReason;
+
+    //read by writer only
+    private String next;
+    private boolean ended;
+
+    /**
+     * @param capacity maximum count of pages waiting for the writer
+     */
+    PagePipeline(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Waits until the page fits into the queue
+     *
+     * @param page page path
+     * @return false if the pipeline was aborted
+     * @throws InterruptedException when interrupted while waiting
+     */
+    boolean put(String page) throws InterruptedException {
+        while (abortReason == null) {
+            if (queue.offer(page, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                return abortReason == null;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Marks end of pages, the writer finishes the archive once it takes all of them
+     *
+     * @return false if the pipeline was aborted
+     * @throws InterruptedException when interrupted while waiting
+     */
+    boolean close() throws InterruptedException {
+        return put(END);
+    }
+
+    /**
+     * Aborts the pipeline, only the first reason is kept
+     *
+     * @param reason reason of abort
+     */
+    synchronized void abort(String reason) {
+        if (abortReason == null) {
+            abortReason = reason;
+        }
+
+        queue.clear();
+    }
+
+    /**
+     * @return reason of abort, null if the pipeline was not aborted
+     */
+    String getAbortReason() {
+        return abortReason;
+    }
+
+    /**
+     * Waits for the next page
+     *
+     * @throws CancellationException when the pipeline was aborted
+     */
+    @Override
+    public boolean hasNext() {
+        while (next == null && !ended) {
+            checkAborted();
+
+            String page;
+
+            try {
+                page = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abort("Interrupted.");
+                break;
+            }
+
+            if (page == END) {
+                ended = true;
+            } else {
+                next = page;
+            }
+        }
+
+        checkAborted();
+
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        var page = next;
+        next = null;
+
+        return page;
+    }
+
+    @Override
+    public boolean isReady() {
+        return next != null || ended || abortReason != null || !queue.isEmpty();
+    }
+
+    private void checkAborted() {
+        if (abortReason != null) {
+            throw new CancellationException(abortReason);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package cz.mzk.holly.extractor;
+
+import cz.mzk.holly.fedora.FedoraHttpClient;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Selects range of volumes or issues by their MODS value (year, issue number). Items of periodicals are ordered
+ * by this value, so the range bounds are searched by k-ary search: every round loads MODS of several evenly
+ * spaced items in parallel and narrows the interval accordingly, range of n items therefore costs O(log n)
+ * MODS fetches.
+ *
+ * Values are compared by their leading number. When any loaded value is not a number or is missing, loaded values
+ * are not ordered or the start value is not found, the range is selected by linear scan instead. For ordered items
+ * the result is the same as of the linear scan: range starts with the first item equal to the start value and ends
+ * with the first following item equal to the end value.
+ *
+ * Order can only be checked on loaded items: every probe is loaded together with its neighbours and the selected
+ * range (only its start when end value is not set) is loaded with one item on each side before it is returned.
+ * Disorder among items which were never loaded is not detected, e.g. an item equal to the start value far before
+ * the found start, unordered list may then be selected differently than by the linear scan.
+ *
+ * @author kremlacek
+ */
+class RangeSelector {
+
+    private static final Logger logger = Logger.getLogger(RangeSelector.class.getName());
+
+    //lists shorter than this are scanned, search would not save any fetch
+    private static final int MIN_SEARCHED_SIZE = 4;
+
+    private final Function<String, CompletableFuture<String>> valueLoader;
+    private final int probes;
+
+    private List<String> uuids;
+
+    //values loaded by item index, reused by linear scan
+    private final Map<Integer, String> values = new TreeMap<>();
+
+    /**
+     * @param valueLoader loads MODS value of item by its uuid
+     * @param probes count of items loaded in parallel in one search round
+     */
+    RangeSelector(Function<String, CompletableFuture<String>> valueLoader, int probes) {
+        this.valueLoader = valueLoader;
+        this.probes = Math.max(1, probes);
+    }
+
+    /**
+     * @param itemUuids ordered list of uuids
+     * @param startValue starting value of range, whole list is selected if null or empty
+     * @param endValue ending value of range, list is selected till its end if null or empty
+     * @return selected uuids in original order
+     * @throws IOException when MODS could not be loaded
+     */
+    List<String> select(List<String> itemUuids, String startValue, String endValue) throws IOException {
+        this.uuids = itemUuids;
+        values.clear();
+
+        if (!isSet(startValue) && !isSet(endValue)) {
+            return new ArrayList<>(itemUuids);
+        }
+
+        if (itemUuids.size() < MIN_SEARCHED_SIZE) {
+            return selectLinear(startValue, endValue);
+        }
+
+        try {
+            var selected = search(startValue, endValue);
+
+            if (selected != null) {
+                logger.fine("Selected " + selected.size() + " of " + itemUuids.size() + " items by " + values.size() + " MODS fetches.");
+                return selected;
+            }
+        } catch (IllegalArgumentException e) {
+            //value is not a number or item has no value
+            logger.fine("Range search not applicable, scanning items. Reason: " + e.getMessage());
+        }
+
+        return selectLinear(startValue, endValue);
+    }
+
+    /**
+     * @return selected uuids, null if items are not ordered and linear scan is needed
+     */
+    private List<String> search(String startValue, String endValue) throws IOException {
+        int n = uuids.size();
+        int start = 0;
+
+        if (isSet(startValue)) {
+            long startKey = key(startValue);
+            start = lowerBound(0, startKey);
+
+            if (start == n || !values.get(start).equals(startValue)) {
+                //start value not found, it is either missing or items are not ordered
+                return null;
+            }
+        }
+
+        int end = n - 1;
+
+        if (isSet(endValue)) {
+            long endKey = key(endValue);
+            int bound = lowerBound(start, endKey);
+
+            if (bound < n && key(values.get(bound)) == endKey) {
+                if (!values.get(bound).equals(endValue)) {
+                    return null;
+                }
+
+                end = bound;
+            }
+            //otherwise end value does not follow the start, list is selected till its end
+        }
+
+        //selected items and their neighbours must be ordered as well, range without end value is selected till
+        //the end of the list regardless of the order of its items
+        load(range(start - 1, isSet(endValue) ? end + 1 : start + 1));
+
+        return isOrdered() ? new ArrayList<>(uuids.subList(start, end + 1)) : null;
+    }
+
+    /**
+     * @return index of the first item at or after from with value not lower than key, size of the list if none
+     */
+    private int lowerBound(int from, long key) throws IOException {
+        int lo = from;
+        int hi = uuids.size();
+
+        while (lo < hi) {
+            int count = Math.min(probes, hi - lo);
+            var indexes = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                indexes[i] = lo + (int) ((long) (hi - lo) * (i + 1) / (count + 1));
+            }
+
+            //neighbours are loaded in the same round, so that disorder around probes is detected without extra latency
+            var loaded = new TreeSet<Integer>();
+
+            for (int index : indexes) {
+                loaded.addAll(Arrays.asList(index - 1, index, index + 1));
+            }
+
+            load(loaded.stream().filter(i -> i >= 0 && i < uuids.size()).mapToInt(Integer::intValue).toArray());
+
+            int newHi = hi;
+
+            for (int index : indexes) {
+                if (key(values.get(index)) < key) {
+                    lo = index + 1;
+                } else {
+                    newHi = index;
+                    break;
+                }
+            }
+
+            hi = newHi;
+        }
+
+        return lo;
+    }
+
+    /**
+     * @return indexes from first to last, both included, within bounds of the list
+     */
+    private int[] range(int first, int last) {
+        return IntStream.rangeClosed(Math.max(0, first), Math.min(uuids.size() - 1, last)).toArray();
+    }
+
+    /**
+     * Loads values of items not loaded yet in parallel
+     */
+    private void load(int... indexes) throws IOException {
+        var futures = new TreeMap<Integer, CompletableFuture<String>>();
+
+        for (int index : indexes) {
+            if (!values.containsKey(index)) {
+                futures.put(index, valueLoader.apply(uuids.get(index)));
+            }
+        }
+
+        try {
+            for (var entry : futures.entrySet()) {
+                values.put(entry.getKey(), FedoraHttpClient.await(entry.getValue()));
+            }
+        } finally {
+            futures.values().forEach(f -> f.cancel(false));
+        }
+    }
+
+    /**
+     * @return true if loaded values do not decrease with index
+     */
+    private boolean isOrdered() {
+        long previous = Long.MIN_VALUE;
+
+        for (var value : values.values()) {
+            long key = key(value);
+
+            if (key < previous) {
+                logger.info("Items are not ordered by value, scanning all of them.");
+                return false;
+            }
+
+            previous = key;
+        }
+
+        return true;
+    }
+
+    private List<String> selectLinear(String startValue, String endValue) throws IOException {
+        boolean reachedStart = false;
+        var selected = new ArrayList<String>();
+
+        for (int i = 0; i < uuids.size(); i++) {
+            load(i);
+
+            String elementValue = values.get(i);
+
+            if (isSet(startValue) && !reachedStart) {
+                if (elementValue.equals(startValue)) {
+                    //every following item is in requested range
+                    reachedStart = true;
+                } else {
+                    //item is before requested range
+                    continue;
+                }
+            }
+
+            selected.add(uuids.get(i));
+
+            //reached last item of requested range
+            if (isSet(endValue) && elementValue.equals(endValue)) {
+                break;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * @param value MODS value, e.g. 1901 or 12a
+     * @return leading number of the value
+     * @throws NumberFormatException when the value does not start with a number
+     */
+    private static long key(String value) {
+        var trimmed = value.trim();
+        int digits = 0;
+
+        while (digits < trimmed.length() && digits < 18 && Character.isDigit(trimmed.charAt(digits))) {
+            digits++;
+        }
+
+        if (digits == 0) {
+            throw new NumberFormatException("Value " + value + " is not a number");
+        }
+
+        return Long.parseLong(trimmed.substring(0, digits));
+    }
+
+    static boolean isSet(String value) {
+        return value != null && !value.equals("");
+    }
+}
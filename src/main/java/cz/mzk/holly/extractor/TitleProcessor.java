@@ -1,6 +1,7 @@
 package cz.mzk.holly.extractor;
 
 import cz.mzk.holly.model.TreeNode;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Logger;
 
 /**
@@ -10,29 +11,36 @@ class TitleProcessor implements Runnable {
     private static final Logger logger = Logger.getLogger(TitleProcessor.class.getName());
 
     private final ImageExtractor imageExtractor;
-    private final String uuid;
-    private final TreeNode root;
+    private final TreeNode subTree;
     private final Packer.Config cfg;
 
-    public TitleProcessor(ImageExtractor imageExtractor, String uuid, TreeNode root, Packer.Config cfg) {
+    /**
+     * @param imageExtractor extractor used for processing
+     * @param subTree subtree of the title, named by its uuid
+     * @param cfg processing configuration
+     */
+    public TitleProcessor(ImageExtractor imageExtractor, TreeNode subTree, Packer.Config cfg) {
         this.imageExtractor = imageExtractor;
-        this.uuid = uuid;
-        this.root = root;
+        this.subTree = subTree;
         this.cfg = cfg;
     }
 
     @Override
     public void run() {
+        var uuid = subTree.getName();
+
         if (!imageExtractor.hasUuidPrefix(uuid)) {
             throw new IllegalArgumentException("Invalid UUID: " + (uuid == null ? "null" : uuid));
         }
 
-        var subTree = root.createSubTree(uuid);
-
         try {
             imageExtractor.processTree(subTree, cfg);
+        } catch (CancellationException e) {
+            logger.fine("Processing tree: " + subTree.getName() + " cancelled. Reason: " + e.getMessage());
+            imageExtractor.getCrawlBudget().recordCancelled(uuid);
         } catch (Exception e) {
             logger.severe("Processing tree: " + subTree.getName() + " failed. Reason: " + e.getMessage());
+            imageExtractor.getCrawlBudget().recordIncomplete(uuid, e.getMessage());
         }
     }
 }
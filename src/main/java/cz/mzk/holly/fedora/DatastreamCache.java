@@ -0,0 +1,299 @@
+package cz.mzk.holly.fedora;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.fedora.FedoraRESTConnector.FedoraDSType;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Bounded in-memory cache of Fedora datastreams keyed by uuid and datastream type.
+ *
+ * Entries are evicted in LRU order once entry count or total weight (approximate size in bytes) is exceeded
+ * and expire after configured time to live. Concurrent requests for the same datastream share single fetch,
+ * the fetch is cancelled once all callers waiting for it have cancelled their futures.
+ *
+ * @author kremlacek
+ */
+public class DatastreamCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 20000;
+    private static final long DEFAULT_MAX_WEIGHT = 64 * 1024 * 1024;
+    private static final long DEFAULT_TTL = 3600;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final long ttlMillis;
+
+    //access ordered map, guarded by this
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+
+    private final Map<Key, Loading> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * Creates cache with specified bounds
+     *
+     * @param maxEntries maximum count of cached datastreams, 0 disables caching (fetches are still coalesced)
+     * @param maxWeight maximum approximate size of cached datastreams in bytes
+     * @param ttlSeconds time after which entry is no longer used
+     */
+    public DatastreamCache(int maxEntries, long maxWeight, long ttlSeconds) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlSeconds * 1000;
+    }
+
+    /**
+     * Creates cache configured from system environment
+     *
+     * @return new cache instance
+     */
+    public static DatastreamCache fromEnvironment() {
+        return new DatastreamCache(
+                EnvUtils.getInt("FEDORA_CACHE_MAX_ENTRIES", DEFAULT_MAX_ENTRIES),
+                EnvUtils.getLong("FEDORA_CACHE_MAX_BYTES", DEFAULT_MAX_WEIGHT),
+                EnvUtils.getLong("FEDORA_CACHE_TTL", DEFAULT_TTL));
+    }
+
+    /**
+     * Returns cache configured from system environment shared by the whole application
+     *
+     * @return application wide cache instance
+     */
+    public static DatastreamCache getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Returns cached datastream or loads it using supplied loader. If the same datastream is being loaded already,
+     * the running fetch is shared.
+     *
+     * @param type datastream type
+     * @param uuid uuid of document
+     * @param loader starts fetch of the datastream
+     * @return future completed with datastream value
+     */
+    public CompletableFuture<String> get(FedoraDSType type, String uuid, Supplier<CompletableFuture<String>> loader) {
+        var key = new Key(type, uuid);
+        var value = lookup(key);
+
+        if (value != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(value);
+        }
+
+        var created = new Loading();
+        Loading running;
+
+        while ((running = loading.putIfAbsent(key, created)) != null) {
+            if (running.join()) {
+                coalesced.incrementAndGet();
+                return running.waiter();
+            }
+
+            //fetch was abandoned by all its callers, start new one
+            loading.remove(key, running);
+        }
+
+        misses.incrementAndGet();
+        created.join();
+
+        try {
+            created.fetch = loader.get();
+            created.fetch.whenComplete((result, e) -> {
+                if (e == null) {
+                    store(key, result);
+                }
+
+                loading.remove(key, created);
+
+                if (e != null) {
+                    created.value.completeExceptionally(e);
+                } else {
+                    created.value.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            loading.remove(key, created);
+            created.value.completeExceptionally(e);
+        }
+
+        return created.waiter();
+    }
+
+    private synchronized String lookup(Key key) {
+        var entry = entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() - entry.created > ttlMillis) {
+            remove(key);
+            return null;
+        }
+
+        return entry.value;
+    }
+
+    private synchronized void store(Key key, String value) {
+        if (maxEntries <= 0 || weigh(value) > maxWeight) {
+            return;
+        }
+
+        remove(key);
+
+        entries.put(key, new Entry(value));
+        weight += weigh(value);
+
+        //evict least recently used entries
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+
+        while ((entries.size() > maxEntries || weight > maxWeight) && it.hasNext()) {
+            var eldest = it.next();
+            weight -= weigh(eldest.getValue().value);
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Key key) {
+        var removed = entries.remove(key);
+
+        if (removed != null) {
+            weight -= weigh(removed.value);
+        }
+    }
+
+    private static long weigh(String value) {
+        return 2L * value.length();
+    }
+
+    /**
+     * Removes all entries, counters are kept
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "DatastreamCache{size=" + getSize() + ", weight=" + getWeight() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", coalesced=" + getCoalesced() + ", evictions=" + getEvictions() + "}";
+    }
+
+    private static class Key {
+        private final FedoraDSType type;
+        private final String uuid;
+
+        private Key(FedoraDSType type, String uuid) {
+            this.type = type;
+            this.uuid = uuid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return type == key.type && uuid.equals(key.uuid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, uuid);
+        }
+    }
+
+    /**
+     * Fetch in progress shared by all callers requesting the same datastream
+     */
+    private static class Loading {
+        private final CompletableFuture<String> value = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger(0);
+        private volatile CompletableFuture<String> fetch;
+
+        /**
+         * @return false if the fetch was abandoned and cannot be joined
+         */
+        private boolean join() {
+            int count;
+
+            do {
+                count = waiters.get();
+
+                if (count == 0 && fetch != null) {
+                    return false;
+                }
+            } while (!waiters.compareAndSet(count, count + 1));
+
+            return true;
+        }
+
+        /**
+         * @return future of single caller, callers cannot cancel the shared fetch unless all of them cancel
+         */
+        private CompletableFuture<String> waiter() {
+            var waiter = value.thenApply(Function.identity());
+
+            waiter.whenComplete((result, e) -> {
+                if (waiter.isCancelled() && waiters.decrementAndGet() == 0 && fetch != null) {
+                    fetch.cancel(true);
+                }
+            });
+
+            return waiter;
+        }
+    }
+
+    private static class Entry {
+        private final String value;
+        private final long created = System.currentTimeMillis();
+
+        private Entry(String value) {
+            this.value = value;
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final DatastreamCache INSTANCE = fromEnvironment();
+    }
+}
@@ -0,0 +1,346 @@
+package cz.mzk.holly.fedora;
+
+import cz.mzk.holly.EnvUtils;
+import cz.mzk.holly.MetricsUtils;
+import io.micrometer.core.instrument.Counter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP client shared by all Fedora requests of the application.
+ *
+ * Connections are kept alive and reused between requests, credentials are sent preemptively so that
+ * no authentication challenge is paid per datastream. Number of requests in flight is limited
+ * by pool size, requests over the limit are queued and started once a connection is released.
+ *
+ * Transient failures (I/O errors, timeouts, 429, 502, 503 and 504 responses) are retried with exponential
+ * backoff with random jitter, so that retries of many crawls do not hit Fedora at the same moment. Connection
+ * is not held while waiting for retry.
+ *
+ * @author kremlacek
+ */
+public class FedoraHttpClient {
+
+    private static final String DEFAULT_FEDORA_ADDRESS = "http://dk-fedora.infra.mzk.cz/fedora";
+    private static final int DEFAULT_POOL_SIZE = 16;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10;
+    private static final int DEFAULT_REQUEST_TIMEOUT = 20;
+    private static final int DEFAULT_RETRIES = 3;
+    private static final long DEFAULT_RETRY_BACKOFF = 200;
+    private static final long MAX_RETRY_BACKOFF = 10000;
+
+    private static final Counter RETRIES = MetricsUtils.counter("holly.fedora.retries", "Fedora requests retried after transient failure");
+
+    private static final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "fedora-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String baseAddress;
+    private final String authorization;
+    private final Duration requestTimeout;
+    private final int retries;
+    private final long retryBackoff;
+    private final HttpClient client;
+
+    private final int poolSize;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates client for Fedora at specified address
+     *
+     * @param baseAddress Fedora address without trailing slash, e.g. http://localhost:8080/fedora
+     * @param user Fedora user, null if requests should not be authenticated
+     * @param password Fedora password
+     * @param poolSize maximum count of requests (and therefore connections) in flight
+     * @param connectTimeout timeout for establishing connection
+     * @param requestTimeout timeout of single request including response body
+     */
+    public FedoraHttpClient(String baseAddress, String user, String password, int poolSize, Duration connectTimeout, Duration requestTimeout) {
+        this(baseAddress, user, password, poolSize, connectTimeout, requestTimeout, 0, Duration.ZERO);
+    }
+
+    /**
+     * Creates client for Fedora at specified address retrying transient failures
+     *
+     * @param baseAddress Fedora address without trailing slash, e.g. http://localhost:8080/fedora
+     * @param user Fedora user, null if requests should not be authenticated
+     * @param password Fedora password
+     * @param poolSize maximum count of requests (and therefore connections) in flight
+     * @param connectTimeout timeout for establishing connection
+     * @param requestTimeout timeout of single request including response body
+     * @param retries maximum count of retries of single request, 0 disables retries
+     * @param retryBackoff delay before the first retry, doubled with every following retry
+     */
+    public FedoraHttpClient(String baseAddress, String user, String password, int poolSize, Duration connectTimeout, Duration requestTimeout,
+                            int retries, Duration retryBackoff) {
+        this.baseAddress = baseAddress;
+        this.poolSize = Math.max(1, poolSize);
+        this.requestTimeout = requestTimeout;
+        this.retries = Math.max(0, retries);
+        this.retryBackoff = Math.max(1, retryBackoff.toMillis());
+
+        if (user != null && password != null) {
+            this.authorization = "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+        } else {
+            this.authorization = null;
+        }
+
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .cookieHandler(new CookieManager())
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(Executors.newFixedThreadPool(this.poolSize, r -> {
+                    var t = new Thread(r, "fedora-http");
+                    t.setDaemon(true);
+                    return t;
+                }))
+                .build();
+    }
+
+    /**
+     * Returns client configured from system environment, see README for the list of variables
+     *
+     * @return application wide client instance
+     */
+    public static FedoraHttpClient getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public String getBaseAddress() {
+        return baseAddress;
+    }
+
+    /**
+     * Performs GET request on path relative to Fedora address
+     *
+     * @param path path starting with slash, query included
+     * @return response body
+     * @throws IOException when request fails or Fedora responds with other than 2xx code
+     */
+    public String get(String path) throws IOException {
+        return await(getAsync(path));
+    }
+
+    /**
+     * Performs asynchronous GET request on path relative to Fedora address
+     *
+     * @param path path starting with slash, query included
+     * @return future completed with response body or exceptionally with IOException, cancelling the future
+     * removes queued request or drops response of request in flight, which keeps its connection until it completes
+     */
+    public CompletableFuture<String> getAsync(String path) {
+        var builder = HttpRequest.newBuilder(URI.create(baseAddress + path))
+                .timeout(requestTimeout)
+                .GET();
+
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+
+        var request = builder.build();
+        var result = new CompletableFuture<String>();
+
+        submit(request, result, 0);
+
+        return result;
+    }
+
+    /**
+     * Sends the request once a connection permit is available
+     */
+    private void submit(HttpRequest request, CompletableFuture<String> result, int attempt) {
+        Runnable send = () -> send(request, result, attempt);
+
+        if (inFlight.incrementAndGet() <= poolSize) {
+            send.run();
+        } else {
+            inFlight.decrementAndGet();
+            pending.add(send);
+            //permit could have been released before the request was queued
+            drain();
+        }
+    }
+
+    /**
+     * Sends the request holding a connection permit, transient failure is scheduled for retry
+     */
+    private void send(HttpRequest request, CompletableFuture<String> result, int attempt) {
+        if (result.isDone()) {
+            //cancelled while waiting in queue
+            release();
+            return;
+        }
+
+        try {
+            //cancelled request is not cancelled in the client, JDK 11 would complete it without aborting the exchange,
+            //so the permit is kept until the exchange completes (within the request timeout) and the pool stays limited
+            var sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+
+            sent.whenComplete((response, e) -> {
+                release();
+
+                if (e == null && response.statusCode() / 100 == 2) {
+                    result.complete(response.body());
+                    return;
+                }
+
+                Throwable failure;
+
+                if (e != null) {
+                    failure = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                } else {
+                    failure = new IOException("Fedora responded with code " + response.statusCode() + " for " + request.uri());
+                }
+
+                if (attempt < retries && !result.isDone() && isTransient(failure, response)) {
+                    RETRIES.increment();
+                    retryTimer.schedule(() -> {
+                        if (!result.isDone()) {
+                            submit(request, result, attempt + 1);
+                        }
+                    }, getRetryDelay(attempt), TimeUnit.MILLISECONDS);
+                } else {
+                    result.completeExceptionally(failure);
+                }
+            });
+        } catch (RuntimeException e) {
+            release();
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return true if the request can succeed when repeated
+     */
+    private static boolean isTransient(Throwable failure, HttpResponse<String> response) {
+        if (response != null) {
+            int code = response.statusCode();
+            return code == 429 || code == 502 || code == 503 || code == 504;
+        }
+
+        //connection errors and request timeouts, cancellation is not an IOException
+        return failure instanceof IOException;
+    }
+
+    /**
+     * Exponential backoff, upper half of the delay is random
+     *
+     * @param attempt index of the failed attempt starting at 0
+     * @return delay before next attempt in milliseconds
+     */
+    private long getRetryDelay(int attempt) {
+        long delay = Math.min(MAX_RETRY_BACKOFF, retryBackoff << Math.min(attempt, 20));
+
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        while (!pending.isEmpty()) {
+            if (inFlight.incrementAndGet() > poolSize) {
+                inFlight.decrementAndGet();
+                return;
+            }
+
+            var next = pending.poll();
+
+            if (next == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+
+            next.run();
+        }
+    }
+
+    /**
+     * Cancels the source when the dependent stage is cancelled, so that cancellation of derived futures reaches
+     * the request
+     *
+     * @param source future the dependent stage was derived from
+     * @param dependent derived stage
+     * @param <T> result type
+     * @return dependent stage
+     */
+    public static <T> CompletableFuture<T> propagateCancel(CompletableFuture<?> source, CompletableFuture<T> dependent) {
+        dependent.whenComplete((result, e) -> {
+            if (dependent.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+
+        return dependent;
+    }
+
+    /**
+     * Waits for the future to complete, unwrapping IOException from its failure
+     *
+     * @param future future to be awaited
+     * @param <T> result type
+     * @return future result
+     * @throws IOException when future completed with IOException
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Fedora response");
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException(cause);
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final FedoraHttpClient INSTANCE = new FedoraHttpClient(
+                EnvUtils.getString("FEDORA_ADDRESS", DEFAULT_FEDORA_ADDRESS),
+                System.getenv("FEDORA_USER"),
+                System.getenv("FEDORA_PASSWORD"),
+                EnvUtils.getInt("FEDORA_POOL_SIZE", DEFAULT_POOL_SIZE),
+                Duration.ofSeconds(EnvUtils.getInt("FEDORA_CONNECT_TIMEOUT", DEFAULT_CONNECT_TIMEOUT)),
+                Duration.ofSeconds(EnvUtils.getInt("FEDORA_TIMEOUT", DEFAULT_REQUEST_TIMEOUT)),
+                EnvUtils.getInt("FEDORA_RETRIES", DEFAULT_RETRIES),
+                Duration.ofMillis(EnvUtils.getLong("FEDORA_RETRY_BACKOFF", DEFAULT_RETRY_BACKOFF)));
+    }
+}
@@ -1,15 +1,15 @@
 package cz.mzk.holly.fedora;
 
 import cz.mzk.holly.HTTPUtils;
+import cz.mzk.holly.MetricsUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Authenticator;
-import java.net.CookieHandler;
-import java.net.CookieManager;
-import java.net.PasswordAuthentication;
-import java.net.URL;
-import java.net.URLConnection;
-import org.apache.commons.io.IOUtils;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Jakub Kremlacek
@@ -30,82 +30,122 @@ public class FedoraRESTConnector {
         }
     }
 
-    private static final String FEDORA_ADDRESS = "http://dk-fedora.infra.mzk.cz/fedora";
     private static final String FEDORA_DS_FSTRING = "/objects/%s/datastreams/%s";
 
-    private static final String USER  = System.getenv("FEDORA_USER");
-    private static final String PW = System.getenv("FEDORA_PASSWORD");
+    //requests actually sent to Fedora, cache hits are not measured
+    private static final Map<FedoraDSType, Timer> REQUEST_TIMERS = new EnumMap<>(FedoraDSType.class);
+    private static final Map<FedoraDSType, Timer> FAILED_REQUEST_TIMERS = new EnumMap<>(FedoraDSType.class);
+    private static final Map<FedoraDSType, Counter> REQUEST_ERRORS = new EnumMap<>(FedoraDSType.class);
+
+    static {
+        for (var type : FedoraDSType.values()) {
+            REQUEST_TIMERS.put(type, MetricsUtils.timer("holly.fedora.requests", "Latency of Fedora datastream requests",
+                    "datastream", type.getName(), "outcome", "success"));
+            FAILED_REQUEST_TIMERS.put(type, MetricsUtils.timer("holly.fedora.requests", "Latency of Fedora datastream requests",
+                    "datastream", type.getName(), "outcome", "error"));
+            REQUEST_ERRORS.put(type, MetricsUtils.counter("holly.fedora.errors", "Failed Fedora datastream requests",
+                    "datastream", type.getName()));
+        }
+    }
+
+    private final FedoraHttpClient client;
+    private final DatastreamCache cache;
 
     /**
-     * Creates instance with password cookie
+     * Creates instance using application wide Fedora client and datastream cache
      */
     public FedoraRESTConnector() {
-
-        Authenticator.setDefault(new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-
-                return new PasswordAuthentication(USER, PW.toCharArray());
-            }
-        });
-
-        CookieHandler.setDefault(new CookieManager());
+        this(FedoraHttpClient.getInstance(), DatastreamCache.getInstance());
     }
 
     /**
-     * Receives path on imageserver from given tiles-url in RELS-EXT XML stored in string. System.err message can be disabled with suppressErrorReport
+     * Creates instance using specified Fedora client and datastream cache
      *
-     * @param rels rels-ext xml containing tiles-url
-     * @param suppressErrorReport set to true if System.err should be used
-     * @return imageserver path or null if not found
+     * @param client client used for all requests
+     * @param cache cache in front of datastream requests
      */
-    private static String getImageserverAdressFromRelsExt(String rels, boolean suppressErrorReport) {
-        int a = rels.indexOf("tiles-url") + 9;
-        int i = rels.indexOf(">", a) + 1;
-        //no namespace
-        int j = rels.indexOf("</tiles-url>");
-
-        //k4 namespace
-        if (j == -1) {
-            j = rels.indexOf("</kramerius4:tiles-url>");
-        }
-
-        //k namespace
-        if (j == -1) {
-            j = rels.indexOf("</kramerius:tiles-url>");
-        }
-
-        if (i > j || i == j || j - i < 27) {
-            if (!suppressErrorReport) {
-                System.err.println("Tiles url is invalid: " + rels);
-            }
-            return null;
-        }
-
-        return rels.substring(i, j);
+    public FedoraRESTConnector(FedoraHttpClient client, DatastreamCache cache) {
+        this.client = client;
+        this.cache = cache;
     }
 
+    private static final int MIN_TILES_URL_LENGTH = 27;
+
     /**
      * Loads image address for specified uuid from its Rels-ext
      *
      * @param uuid document uuid
      * @param existCheck true if exception is wanted to be thrown when image address is within rels-ext does not lead to existing image, e.g. link does not work
-     * @return imageserver link to image of specified uuid
+     * @return imageserver link to image of specified uuid, null if rels-ext does not contain valid tiles-url
      * @throws IOException
      */
     public String getImgAddressFromRels(String uuid, boolean existCheck) throws IOException {
-        String rels = loadRELS(uuid);
-
-        String address = getImageserverAdressFromRelsExt(rels, false);
+        String address = getImageserverAddress(uuid, getRelsExt(uuid));
 
         //check if exists
-        if (existCheck && HTTPUtils.getResponseCodeDirect(address) != 200) {
+        if (existCheck && address != null && HTTPUtils.getResponseCodeDirect(address) != 200) {
             throw new IllegalArgumentException("Image at address " + address + " does not exist");
         }
 
         return address;
     }
 
+    /**
+     * Receives path on imageserver from tiles-url of parsed RELS-EXT
+     *
+     * @param uuid document uuid, used for error report
+     * @param rels parsed rels-ext
+     * @return imageserver path or null if not found
+     */
+    public static String getImageserverAddress(String uuid, RelsExt rels) {
+        return validateImageserverAddress(uuid, rels.getTilesUrl());
+    }
+
+    /**
+     * Checks whether tiles-url can be used as imageserver address
+     *
+     * @param uuid document uuid, used for error report
+     * @param address tiles-url value
+     * @return imageserver path or null if address is invalid
+     */
+    public static String validateImageserverAddress(String uuid, String address) {
+        if (address == null || address.length() < MIN_TILES_URL_LENGTH) {
+            System.err.println("Tiles url is invalid for: " + uuid);
+            return null;
+        }
+
+        return address;
+    }
+
+    /**
+     * Loads and parses Rels-ext from Fedora
+     *
+     * @param uuid uuid of document
+     * @return parsed rels-ext
+     * @throws IOException
+     */
+    public RelsExt getRelsExt(String uuid) throws IOException {
+        return RelsExt.parse(loadRELS(uuid));
+    }
+
+    /**
+     * Loads and parses Rels-ext from Fedora asynchronously
+     *
+     * @param uuid uuid of document
+     * @return future completed with parsed rels-ext, cancelling the future cancels the request
+     */
+    public CompletableFuture<RelsExt> getRelsExtAsync(String uuid) {
+        var rels = loadRELSAsync(uuid);
+
+        return FedoraHttpClient.propagateCancel(rels, rels.thenApply(content -> {
+            try {
+                return RelsExt.parse(content);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }));
+    }
+
     /**
      * Loads Rels-ext from Fedora
      *
@@ -117,6 +157,16 @@ public class FedoraRESTConnector {
         return loadDS(FedoraDSType.RELS, uuid);
     }
 
+    /**
+     * Loads Rels-ext from Fedora asynchronously
+     *
+     * @param uuid uuid of document
+     * @return future completed with rels-ext xml as string
+     */
+    public CompletableFuture<String> loadRELSAsync(String uuid) {
+        return loadDSAsync(FedoraDSType.RELS, uuid);
+    }
+
     /**
      * Loads specified datastream from fedora
      *
@@ -126,14 +176,33 @@ public class FedoraRESTConnector {
      * @throws IOException
      */
     private String loadDS(FedoraDSType type, String uuid) throws IOException {
-        URL url = new URL(FEDORA_ADDRESS + getFedoraDsString(uuid, type.getName()) + "/content");
-
-        URLConnection con = url.openConnection();
-        InputStream in = con.getInputStream();
-        String encoding = con.getContentEncoding();
-        encoding = encoding == null ? "UTF-8" : encoding;
+        return FedoraHttpClient.await(loadDSAsync(type, uuid));
+    }
 
-        return IOUtils.toString(in, encoding);
+    /**
+     * Loads specified datastream from cache or fedora asynchronously
+     *
+     * @param type datastream type
+     * @param uuid uuid of document
+     * @return future completed with xml string value
+     */
+    private CompletableFuture<String> loadDSAsync(FedoraDSType type, String uuid) {
+        return cache.get(type, uuid, () -> {
+            long start = System.nanoTime();
+            var request = client.getAsync(getFedoraDsString(uuid, type.getName()) + "/content");
+
+            request.whenComplete((content, e) -> {
+                if (e == null) {
+                    REQUEST_TIMERS.get(type).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                } else if (!request.isCancelled()) {
+                    FAILED_REQUEST_TIMERS.get(type).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    REQUEST_ERRORS.get(type).increment();
+                }
+            });
+
+            //request itself is returned, so that the cache can cancel it
+            return request;
+        });
     }
 
     private String getFedoraDsString(String uuid, String dsId) {
@@ -160,8 +229,30 @@ public class FedoraRESTConnector {
      * @throws IOException
      */
     public String getModsFirstElement(String uuid, String elementName) throws IOException {
-        var mods = getMods(uuid);
+        return getModsElement(getMods(uuid), uuid, elementName);
+    }
+
+    /**
+     * Retreives first occurence of mods element for specified uuid within mods datastream asynchronously
+     *
+     * @param uuid uuid to be scanned
+     * @param elementName mods element name without namespace
+     * @return future completed with value of specified mods element, cancelling the future cancels the request
+     */
+    public CompletableFuture<String> getModsFirstElementAsync(String uuid, String elementName) {
+        var mods = loadDSAsync(FedoraDSType.MODS, uuid);
 
+        return FedoraHttpClient.propagateCancel(mods, mods.thenApply(content -> getModsElement(content, uuid, elementName)));
+    }
+
+    /**
+     * @param mods mods datastream
+     * @param uuid uuid of the object, used in error message
+     * @param elementName mods element name without namespace
+     * @return text of the first occurence of the element
+     * @throws IllegalArgumentException when element is not present
+     */
+    static String getModsElement(String mods, String uuid, String elementName) {
         var elementTagStart = "<" + elementName + ">";
         var elementTagEnd = "</" + elementName + ">";
 
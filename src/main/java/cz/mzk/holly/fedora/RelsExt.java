@@ -0,0 +1,295 @@
+package cz.mzk.holly.fedora;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable view of the RELS-EXT relations used by the crawler.
+ *
+ * Relations are matched by local name, therefore every namespace variant (fedora-model:, kramerius:,
+ * kramerius4:, default namespace) is handled. Resource lists keep document order.
+ *
+ * @author kremlacek
+ */
+public class RelsExt {
+
+    private static final String FEDORA_PREFIX = "info:fedora/";
+
+    private final String model;
+    private final List<String> volumes;
+    private final List<String> items;
+    private final List<String> pages;
+    private final String tilesUrl;
+
+    private RelsExt(String model, List<String> volumes, List<String> items, List<String> pages, String tilesUrl) {
+        this.model = model;
+        this.volumes = Collections.unmodifiableList(volumes);
+        this.items = Collections.unmodifiableList(items);
+        this.pages = Collections.unmodifiableList(pages);
+        this.tilesUrl = tilesUrl;
+    }
+
+    /**
+     * Parses RELS-EXT xml in single pass over the string without building DOM. Only elements used by the crawler
+     * are inspected, their resource attribute (or text in case of tiles-url) is read regardless of prefix.
+     *
+     * @param xml rels-ext xml
+     * @return parsed relations
+     * @throws IOException when element or comment is not terminated
+     */
+    public static RelsExt parse(String xml) throws IOException {
+        String model = null;
+        boolean ambiguousModel = false;
+        String tilesUrl = null;
+        var volumes = new ArrayList<String>();
+        var items = new ArrayList<String>();
+        var pages = new ArrayList<String>();
+
+        int n = xml.length();
+        int i = 0;
+
+        while ((i = xml.indexOf('<', i)) >= 0 && i + 1 < n) {
+            char c = xml.charAt(i + 1);
+
+            //skip comments, cdata, doctype, processing instructions and end tags
+            if (xml.startsWith("<!--", i)) {
+                i = skipPast(xml, "-->", i);
+                continue;
+            }
+
+            if (xml.startsWith("<![CDATA[", i)) {
+                i = skipPast(xml, "]]>", i);
+                continue;
+            }
+
+            if (c == '/' || c == '?' || c == '!') {
+                i = skipPast(xml, ">", i);
+                continue;
+            }
+
+            int nameStart = i + 1;
+            int nameEnd = nameStart;
+
+            while (nameEnd < n && !isNameEnd(xml.charAt(nameEnd))) {
+                nameEnd++;
+            }
+
+            int localStart = localNameStart(xml, nameStart, nameEnd);
+            int tagEnd = findTagEnd(xml, nameEnd);
+
+            if (isLocalName(xml, localStart, nameEnd, "hasModel")) {
+                var value = getResource(xml, nameEnd, tagEnd);
+
+                if (model != null && !model.equals(value)) {
+                    ambiguousModel = true;
+                }
+
+                model = value;
+            } else if (isLocalName(xml, localStart, nameEnd, "hasVolume")) {
+                volumes.add(getResource(xml, nameEnd, tagEnd));
+            } else if (isLocalName(xml, localStart, nameEnd, "hasItem")) {
+                items.add(getResource(xml, nameEnd, tagEnd));
+            } else if (isLocalName(xml, localStart, nameEnd, "hasPage")) {
+                pages.add(getResource(xml, nameEnd, tagEnd));
+            } else if (isLocalName(xml, localStart, nameEnd, "tiles-url") && xml.charAt(tagEnd - 1) != '/') {
+                int textEnd = xml.indexOf('<', tagEnd);
+
+                if (textEnd < 0) {
+                    throw new IOException("Could not parse RELS-EXT. Unterminated tiles-url element.");
+                }
+
+                tilesUrl = unescape(xml.substring(tagEnd + 1, textEnd)).trim();
+            }
+
+            i = tagEnd + 1;
+        }
+
+        return new RelsExt(ambiguousModel ? null : model, volumes, items, pages, tilesUrl == null || tilesUrl.isEmpty() ? null : tilesUrl);
+    }
+
+    private static boolean isNameEnd(char c) {
+        return c == '>' || c == '/' || Character.isWhitespace(c);
+    }
+
+    private static int localNameStart(String xml, int nameStart, int nameEnd) {
+        for (int i = nameEnd - 1; i >= nameStart; i--) {
+            if (xml.charAt(i) == ':') {
+                return i + 1;
+            }
+        }
+
+        return nameStart;
+    }
+
+    private static boolean isLocalName(String xml, int start, int end, String name) {
+        return end - start == name.length() && xml.regionMatches(start, name, 0, name.length());
+    }
+
+    private static int skipPast(String xml, String terminator, int from) throws IOException {
+        int end = xml.indexOf(terminator, from);
+
+        if (end < 0) {
+            throw new IOException("Could not parse RELS-EXT. Missing " + terminator);
+        }
+
+        return end + terminator.length();
+    }
+
+    /**
+     * Finds closing bracket of the tag, brackets within quoted attribute values are ignored
+     */
+    private static int findTagEnd(String xml, int from) throws IOException {
+        char quote = 0;
+
+        for (int i = from; i < xml.length(); i++) {
+            char c = xml.charAt(i);
+
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+
+        throw new IOException("Could not parse RELS-EXT. Unterminated tag.");
+    }
+
+    /**
+     * Reads value of attribute with local name resource (rdf:resource) between tag name and tag end
+     */
+    private static String getResource(String xml, int from, int tagEnd) {
+        int i = from;
+
+        while (i < tagEnd) {
+            int eq = xml.indexOf('=', i);
+
+            if (eq < 0 || eq > tagEnd) {
+                break;
+            }
+
+            int nameEnd = eq;
+            while (nameEnd > i && Character.isWhitespace(xml.charAt(nameEnd - 1))) {
+                nameEnd--;
+            }
+
+            int nameStart = nameEnd;
+            while (nameStart > i && !Character.isWhitespace(xml.charAt(nameStart - 1))) {
+                nameStart--;
+            }
+
+            int valueStart = eq + 1;
+            while (valueStart < tagEnd && Character.isWhitespace(xml.charAt(valueStart))) {
+                valueStart++;
+            }
+
+            if (valueStart >= tagEnd) {
+                break;
+            }
+
+            char quote = xml.charAt(valueStart);
+            int valueEnd = xml.indexOf(quote, valueStart + 1);
+
+            if (valueEnd < 0 || valueEnd > tagEnd) {
+                break;
+            }
+
+            if (isLocalName(xml, localNameStart(xml, nameStart, nameEnd), nameEnd, "resource")) {
+                var value = unescape(xml.substring(valueStart + 1, valueEnd));
+
+                return value.startsWith(FEDORA_PREFIX) ? value.substring(FEDORA_PREFIX.length()) : value;
+            }
+
+            i = valueEnd + 1;
+        }
+
+        return "";
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+
+        var sb = new StringBuilder(value.length());
+        int i = 0;
+
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            int end = c == '&' ? value.indexOf(';', i) : -1;
+
+            if (end < 0) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+
+            var entity = value.substring(i + 1, end);
+
+            try {
+                switch (entity) {
+                    case "amp": sb.append('&'); break;
+                    case "lt": sb.append('<'); break;
+                    case "gt": sb.append('>'); break;
+                    case "quot": sb.append('"'); break;
+                    case "apos": sb.append('\''); break;
+                    default:
+                        if (entity.startsWith("#x")) {
+                            sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+                        } else if (entity.startsWith("#")) {
+                            sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+                        } else {
+                            sb.append(value, i, end + 1);
+                        }
+                }
+            } catch (IllegalArgumentException e) {
+                //not a valid character reference, keep it as is
+                sb.append(value, i, end + 1);
+            }
+
+            i = end + 1;
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return model of the object without info:fedora/ prefix, e.g. model:page, null if not present or ambiguous
+     */
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return uuids of volumes in document order
+     */
+    public List<String> getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * @return uuids of items in document order
+     */
+    public List<String> getItems() {
+        return items;
+    }
+
+    /**
+     * @return uuids of pages in document order
+     */
+    public List<String> getPages() {
+        return pages;
+    }
+
+    /**
+     * @return imageserver address of the object image, null if not present
+     */
+    public String getTilesUrl() {
+        return tilesUrl;
+    }
+}
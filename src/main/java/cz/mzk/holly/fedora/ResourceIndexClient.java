@@ -0,0 +1,154 @@
+package cz.mzk.holly.fedora;
+
+import cz.mzk.holly.MetricsUtils;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries Fedora resource index (risearch) for tiles-urls of all pages of one object, so that they do not have to be
+ * read from RELS-EXT of every page. Hierarchy above pages (volumes, issues) is not queried, every object with pages
+ * still costs its own RELS-EXT and query.
+ *
+ * @author kremlacek
+ */
+public class ResourceIndexClient {
+
+    private static final String RISEARCH_PATH = "/risearch";
+    private static final String FEDORA_PREFIX = "info:fedora/";
+
+    private static final Timer QUERY_TIMER = MetricsUtils.timer("holly.fedora.requests", "Latency of Fedora datastream requests",
+            "datastream", "risearch", "outcome", "success");
+    private static final Timer FAILED_QUERY_TIMER = MetricsUtils.timer("holly.fedora.requests", "Latency of Fedora datastream requests",
+            "datastream", "risearch", "outcome", "error");
+    private static final Counter QUERY_ERRORS = MetricsUtils.counter("holly.fedora.errors", "Failed Fedora datastream requests",
+            "datastream", "risearch");
+    private static final String KRAMERIUS_NS = "http://www.nsdl.org/ontologies/relationships#";
+
+    private static final String PAGE_TILES_QUERY = "SELECT ?page ?tiles WHERE { "
+            + "<info:fedora/%s> <" + KRAMERIUS_NS + "hasPage> ?page . "
+            + "?page <" + KRAMERIUS_NS + "tiles-url> ?tiles "
+            + "} ORDER BY ?page LIMIT %d OFFSET %d";
+
+    private final FedoraHttpClient client;
+    private final int pageSize;
+
+    /**
+     * @param client client used for risearch requests
+     * @param pageSize maximum count of rows returned by single query
+     */
+    public ResourceIndexClient(FedoraHttpClient client, int pageSize) {
+        this.client = client;
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    /**
+     * Loads tiles-url of all pages of specified object using paged queries
+     *
+     * @param uuid uuid of object containing pages
+     * @return map of page uuid to its tiles-url, pages without tiles-url are not present
+     * @throws IOException when query fails
+     */
+    public Map<String, String> getPageTilesUrls(String uuid) throws IOException {
+        var result = new HashMap<String, String>();
+        int offset = 0;
+
+        while (true) {
+            var rows = query(String.format(PAGE_TILES_QUERY, uuid, pageSize, offset));
+
+            for (var row : rows) {
+                if (row.length == 2) {
+                    result.put(stripFedoraPrefix(row[0]), row[1].trim());
+                }
+            }
+
+            if (rows.size() < pageSize) {
+                return result;
+            }
+
+            offset += pageSize;
+        }
+    }
+
+    private List<String[]> query(String sparql) throws IOException {
+        var path = RISEARCH_PATH + "?type=tuples&lang=sparql&format=CSV&flush=false&query="
+                + URLEncoder.encode(sparql, StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+
+        try {
+            var csv = client.get(path);
+            QUERY_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return parseCsv(csv);
+        } catch (IOException | RuntimeException e) {
+            FAILED_QUERY_TIMER.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            QUERY_ERRORS.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Parses risearch CSV response, header line is skipped
+     *
+     * @param csv response body
+     * @return rows of values
+     */
+    static List<String[]> parseCsv(String csv) {
+        var rows = new ArrayList<String[]>();
+        var lines = csv.split("\r?\n");
+
+        //first line contains variable names
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].isEmpty()) {
+                continue;
+            }
+
+            rows.add(parseCsvLine(lines[i]));
+        }
+
+        return rows;
+    }
+
+    private static String[] parseCsvLine(String line) {
+        var values = new ArrayList<String>();
+        var value = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+
+        values.add(value.toString());
+
+        return values.toArray(new String[0]);
+    }
+
+    private static String stripFedoraPrefix(String value) {
+        return value.startsWith(FEDORA_PREFIX) ? value.substring(FEDORA_PREFIX.length()) : value;
+    }
+}
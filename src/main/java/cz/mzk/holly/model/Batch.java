@@ -1,6 +1,7 @@
 package cz.mzk.holly.model;
 
 import java.io.Serializable;
+import java.util.Date;
 
 /**
  * @author kremlacek
@@ -9,11 +10,17 @@ public class Batch implements Serializable {
     private final String name;
     private final String status;
     private final String fileSize;
+    private final Date modified;
 
     public Batch(String name, String status, String fileSize) {
+        this(name, status, fileSize, null);
+    }
+
+    public Batch(String name, String status, String fileSize, Date modified) {
         this.name = name;
         this.status = status;
         this.fileSize = fileSize;
+        this.modified = modified;
     }
 
     public String getName() {
@@ -27,4 +34,8 @@ public class Batch implements Serializable {
     public String getFileSize() {
         return fileSize;
     }
+
+    public Date getModified() {
+        return modified;
+    }
 }
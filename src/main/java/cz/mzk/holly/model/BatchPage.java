@@ -0,0 +1,55 @@
+package cz.mzk.holly.model;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Single page of batch list
+ *
+ * @author kremlacek
+ */
+public class BatchPage implements Serializable {
+    private final List<Batch> batches;
+    private final int page;
+    private final int size;
+    private final int total;
+    private final String sort;
+    private final boolean descending;
+
+    public BatchPage(List<Batch> batches, int page, int size, int total, String sort, boolean descending) {
+        this.batches = batches;
+        this.page = page;
+        this.size = size;
+        this.total = total;
+        this.sort = sort;
+        this.descending = descending;
+    }
+
+    public List<Batch> getBatches() {
+        return batches;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getPageCount() {
+        return Math.max(1, (total + size - 1) / size);
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+}
@@ -0,0 +1,371 @@
+package cz.mzk.holly.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * Page paths of one batch tree. Every path is split into directory and file name: directories are interned segment
+ * by segment (mount, storage, title directory...) and shared by all their pages, file names are stored as UTF-8
+ * in chunks of bytes. Pages are identified by int index into primitive arrays, so that nodes of the tree keep only
+ * indexes instead of path strings. The same path always gets the same index.
+ *
+ * Chunks of names are kept on heap up to heap limit, following chunks are memory-mapped from temporary files,
+ * which are deleted right away and released once the tree is collected.
+ *
+ * Not thread safe, guarded by {@link TreeNode}.
+ *
+ * @author kremlacek
+ */
+class PagePathStore {
+
+    private static final Logger logger = Logger.getLogger(PagePathStore.class.getName());
+
+    //name address is chunk index in upper bits and offset in lower bits
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+    private static final int INITIAL_CHUNK_SIZE = 4096;
+    private static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private final long heapLimit;
+
+    //directories by parent and segment, directory 0 is the root
+    private final Map<DirKey, Integer> dirIds = new HashMap<>();
+    private final Map<String, String> segments = new HashMap<>();
+    private int[] dirParents = new int[64];
+    private String[] dirSegments = new String[64];
+    private int dirCount = 1;
+
+    //pages of the same directory are usually added one after another
+    private String lastDirPath;
+    private int lastDir;
+
+    //pages of the same directory are usually read one after another
+    private int lastReadDir = -1;
+    private String lastReadDirPath;
+
+    private int[] pageDirs = new int[64];
+    private int[] pageNames = new int[64];
+    private int pageCount;
+
+    //open addressing table of page index + 1
+    private int[] table = new int[128];
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer chunk;
+    private long heapBytes;
+    private boolean spilled;
+    private boolean spillFailed;
+
+    /**
+     * @param heapLimit bytes of file names kept on heap, names over the limit are spilled to temporary files
+     */
+    PagePathStore(long heapLimit) {
+        this.heapLimit = heapLimit;
+        dirSegments[0] = "";
+    }
+
+    /**
+     * @param path page path
+     * @return index of the page, known path keeps its index, new path gets index equal to previous size
+     */
+    int add(String path) {
+        int slash = path.lastIndexOf('/');
+        int dir = getDir(path, slash);
+        var name = path.substring(slash + 1).getBytes(StandardCharsets.UTF_8);
+        int hash = 31 * dir + Arrays.hashCode(name);
+
+        int slot = getSlot(hash);
+
+        while (table[slot] != 0) {
+            int page = table[slot] - 1;
+
+            if (pageDirs[page] == dir && nameEquals(pageNames[page], name)) {
+                return page;
+            }
+
+            slot = (slot + 1) & (table.length - 1);
+        }
+
+        if (name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("File name of page " + path + " is too long");
+        }
+
+        if (pageCount == pageDirs.length) {
+            pageDirs = Arrays.copyOf(pageDirs, pageCount * 2);
+            pageNames = Arrays.copyOf(pageNames, pageCount * 2);
+        }
+
+        int page = pageCount++;
+        pageDirs[page] = dir;
+        pageNames[page] = writeName(name);
+        table[slot] = page + 1;
+
+        //keep load factor at most 1/2
+        if (pageCount * 2 > table.length) {
+            rehash();
+        }
+
+        return page;
+    }
+
+    /**
+     * @param page index returned by add
+     * @return page path
+     */
+    String get(int page) {
+        int dir = pageDirs[page];
+
+        if (dir != lastReadDir) {
+            lastReadDirPath = getDirPath(dir);
+            lastReadDir = dir;
+        }
+
+        return lastReadDirPath + readName(pageNames[page]);
+    }
+
+    /**
+     * @return count of distinct pages
+     */
+    int size() {
+        return pageCount;
+    }
+
+    private int getDir(String path, int lastSlash) {
+        if (lastDirPath != null && lastSlash == lastDirPath.length() && path.startsWith(lastDirPath)) {
+            return lastDir;
+        }
+
+        int dir = 0;
+        int start = 0;
+
+        while (start <= lastSlash) {
+            int slash = path.indexOf('/', start);
+            dir = getChild(dir, path.substring(start, slash));
+            start = slash + 1;
+        }
+
+        lastDirPath = lastSlash < 0 ? null : path.substring(0, lastSlash);
+        lastDir = dir;
+
+        return dir;
+    }
+
+    private int getChild(int parent, String segment) {
+        var key = new DirKey(parent, segments.computeIfAbsent(segment, s -> s));
+        var dir = dirIds.get(key);
+
+        if (dir != null) {
+            return dir;
+        }
+
+        if (dirCount == dirParents.length) {
+            dirParents = Arrays.copyOf(dirParents, dirCount * 2);
+            dirSegments = Arrays.copyOf(dirSegments, dirCount * 2);
+        }
+
+        dirParents[dirCount] = parent;
+        dirSegments[dirCount] = key.segment;
+        dirIds.put(key, dirCount);
+
+        return dirCount++;
+    }
+
+    /**
+     * @return directory path with trailing slash, empty for root
+     */
+    private String getDirPath(int dir) {
+        if (dir == 0) {
+            return "";
+        }
+
+        return getDirPath(dirParents[dir]) + dirSegments[dir] + "/";
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+
+        for (int page = 0; page < pageCount; page++) {
+            int slot = getSlot(getHash(page));
+
+            while (table[slot] != 0) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+
+            table[slot] = page + 1;
+        }
+    }
+
+    /**
+     * @return hash of stored page, the same as of added path
+     */
+    private int getHash(int page) {
+        var buffer = chunks.get(pageNames[page] >>> CHUNK_BITS);
+        int offset = pageNames[page] & (CHUNK_SIZE - 1);
+        int length = buffer.getShort(offset) & 0xFFFF;
+        int hash = 1;
+
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer.get(offset + 2 + i);
+        }
+
+        return 31 * pageDirs[page] + hash;
+    }
+
+    private int getSlot(int hash) {
+        //names differ mostly in their ends, spread the hash into low bits
+        return (hash ^ (hash >>> 16)) & (table.length - 1);
+    }
+
+    private int writeName(byte[] name) {
+        int size = 2 + name.length;
+
+        if (chunk == null || chunk.remaining() < size) {
+            nextChunk(size);
+        }
+
+        int address = ((chunks.size() - 1) << CHUNK_BITS) | chunk.position();
+
+        chunk.putShort((short) name.length);
+        chunk.put(name);
+
+        return address;
+    }
+
+    /**
+     * Grows current heap chunk or starts new one, heap chunk or mapped one depending on heap limit
+     */
+    private void nextChunk(int size) {
+        if (chunk != null && chunk.hasArray() && chunk.capacity() < CHUNK_SIZE) {
+            int capacity = Math.min(CHUNK_SIZE, Math.max(chunk.capacity() * 2, chunk.position() + size));
+
+            if (heapBytes + capacity - chunk.capacity() <= heapLimit || spillFailed) {
+                var grown = ByteBuffer.wrap(Arrays.copyOf(chunk.array(), capacity));
+                grown.position(chunk.position());
+                heapBytes += capacity - chunk.capacity();
+                chunk = grown;
+                chunks.set(chunks.size() - 1, chunk);
+
+                if (chunk.remaining() >= size) {
+                    return;
+                }
+            }
+        }
+
+        if (chunks.size() == MAX_CHUNKS) {
+            throw new IllegalStateException("Page paths of batch tree exceed " + ((long) MAX_CHUNKS << CHUNK_BITS) + " bytes");
+        }
+
+        ByteBuffer next = null;
+
+        if (heapBytes + INITIAL_CHUNK_SIZE > heapLimit && !spillFailed) {
+            next = map();
+        }
+
+        if (next == null) {
+            //heap chunk, also when spill failed
+            int capacity = Math.max(INITIAL_CHUNK_SIZE, size);
+            next = ByteBuffer.allocate(capacity);
+            heapBytes += capacity;
+        }
+
+        chunk = next;
+        chunks.add(chunk);
+    }
+
+    /**
+     * @return chunk mapped from deleted temporary file, null if it could not be created
+     */
+    private ByteBuffer map() {
+        try {
+            var file = Files.createTempFile("holly-tree", ".pages");
+
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                var mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE);
+
+                if (!spilled) {
+                    logger.info("Page paths of batch tree exceeded heap limit of " + heapLimit + " bytes, spilling them to temporary files.");
+                    spilled = true;
+                }
+
+                return mapped;
+            } finally {
+                //mapping stays valid, space is released once it is collected
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    file.toFile().deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Could not spill page paths to temporary file, keeping them on heap. Reason: " + e.getMessage());
+            spillFailed = true;
+            return null;
+        }
+    }
+
+    private boolean nameEquals(int address, byte[] name) {
+        var buffer = chunks.get(address >>> CHUNK_BITS);
+        int offset = address & (CHUNK_SIZE - 1);
+
+        if ((buffer.getShort(offset) & 0xFFFF) != name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(offset + 2 + i) != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String readName(int address) {
+        var buffer = chunks.get(address >>> CHUNK_BITS);
+        int offset = address & (CHUNK_SIZE - 1);
+        var name = new byte[buffer.getShort(offset) & 0xFFFF];
+
+        for (int i = 0; i < name.length; i++) {
+            name[i] = buffer.get(offset + 2 + i);
+        }
+
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static class DirKey {
+        private final int parent;
+        private final String segment;
+
+        private DirKey(int parent, String segment) {
+            this.parent = parent;
+            this.segment = segment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DirKey)) {
+                return false;
+            }
+
+            var other = (DirKey) o;
+            return parent == other.parent && segment.equals(other.segment);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(parent, segment);
+        }
+    }
+}
@@ -1,54 +1,174 @@
 package cz.mzk.holly.model;
 
+import cz.mzk.holly.EnvUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Node of the batch tree. Subtrees and pages keep insertion order and can be added from multiple threads,
+ * getters return snapshots.
+ *
+ * Page paths of the whole tree are kept in one compact {@link PagePathStore}, nodes keep only indexes of their pages.
+ *
  * @author kremlacek
  */
 public class TreeNode {
 
+    //bytes of page file names of one tree kept on heap, following names are spilled to memory-mapped temporary files
+    private static final long HEAP_LIMIT = EnvUtils.getLong("BATCH_TREE_HEAP_BYTES", 32 * 1024 * 1024);
+
+    private static final int[] NO_PAGES = new int[0];
+
     private final String name;
 
-    private final Map<String, TreeNode> subObjects;
-    private final Set<String> pagePaths = new LinkedHashSet<>();
+    private final Map<String, TreeNode> subObjects = new LinkedHashMap<>();
 
-    public TreeNode(boolean parallel, String name) {
-        this.name = name;
+    //shared by the whole tree, guards pages of all its nodes
+    private final PagePathStore store;
+    private int[] pages = NO_PAGES;
+    private int pageCount;
 
-        if (parallel) {
-            subObjects = new ConcurrentHashMap<>();
-        } else {
-            subObjects = new HashMap<>();
-        }
+    public TreeNode(String name) {
+        this(name, HEAP_LIMIT);
+    }
+
+    /**
+     * @param name node name
+     * @param heapLimit bytes of page file names of the tree kept on heap
+     */
+    public TreeNode(String name, long heapLimit) {
+        this(name, new PagePathStore(heapLimit));
+    }
+
+    private TreeNode(String name, PagePathStore store) {
+        this.name = name;
+        this.store = store;
     }
 
     public TreeNode createSubTree(String name) {
-        var subTree = new TreeNode(false, name);
+        var subTree = new TreeNode(name, store);
 
-        subObjects.put(name, subTree);
+        synchronized (subObjects) {
+            subObjects.put(name, subTree);
+        }
 
         return subTree;
     }
 
     public Map<String, TreeNode> getSubTree() {
-        return Collections.unmodifiableMap(subObjects);
+        synchronized (subObjects) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(subObjects));
+        }
     }
 
     public void addPagePath(String page) {
-        pagePaths.add(page);
+        synchronized (store) {
+            int known = store.size();
+            int index = store.add(page);
+
+            if (index < known && contains(index)) {
+                return;
+            }
+
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(8, pageCount * 2));
+            }
+
+            pages[pageCount++] = index;
+        }
     }
 
     public Set<String> getPagePaths() {
-        return Collections.unmodifiableSet(pagePaths);
+        synchronized (store) {
+            var paths = new LinkedHashSet<String>(pageCount * 2);
+
+            for (int i = 0; i < pageCount; i++) {
+                paths.add(store.get(pages[i]));
+            }
+
+            return Collections.unmodifiableSet(paths);
+        }
+    }
+
+    /**
+     * @return count of pages directly under this node
+     */
+    public int getPageCount() {
+        synchronized (store) {
+            return pageCount;
+        }
+    }
+
+    /**
+     * Iterates page paths of the whole tree in archive order, pages of subtrees precede pages of their parent.
+     * Paths are decoded one by one, so that the tree is never expanded into strings at once.
+     *
+     * @return iterator of page paths
+     */
+    public Iterator<String> pageIterator() {
+        var nodes = new ArrayList<TreeNode>();
+        collectNodes(this, nodes);
+
+        return new Iterator<>() {
+            private int node = 0;
+            private int page = 0;
+
+            @Override
+            public boolean hasNext() {
+                synchronized (store) {
+                    while (node < nodes.size() && page >= nodes.get(node).pageCount) {
+                        node++;
+                        page = 0;
+                    }
+
+                    return node < nodes.size();
+                }
+            }
+
+            @Override
+            public String next() {
+                synchronized (store) {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    return store.get(nodes.get(node).pages[page++]);
+                }
+            }
+        };
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * Page added to other node before can be added to this one as well
+     */
+    private boolean contains(int index) {
+        for (int i = 0; i < pageCount; i++) {
+            if (pages[i] == index) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void collectNodes(TreeNode root, List<TreeNode> nodes) {
+        for (var subTree : root.getSubTree().values()) {
+            collectNodes(subTree, nodes);
+        }
+
+        nodes.add(root);
+    }
+
 }
@@ -0,0 +1,141 @@
+import cz.mzk.holly.controller.RangeFileServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Serves archive using byte ranges and conditional requests
+ *
+ * @author kremlacek
+ */
+public class RangeFileServerTest {
+
+    private static final int ARCHIVE_SIZE = 300_000;
+
+    private File archive;
+    private byte[] content;
+
+    @BeforeEach
+    public void createArchive() throws IOException {
+        content = new byte[ARCHIVE_SIZE];
+        new Random(42).nextBytes(content);
+
+        archive = File.createTempFile("batch", ".zip");
+        Files.write(archive.toPath(), content);
+    }
+
+    @AfterEach
+    public void deleteArchive() {
+        archive.delete();
+    }
+
+    @Test
+    public void resumesInterruptedTransfer() throws Exception {
+        var first = serve(new MockHttpServletRequest("GET", "/download/batch.zip"));
+
+        assertEquals(200, first.getStatus());
+
+        //connection dropped after part of the archive was received
+        var received = new ByteArrayOutputStream();
+        received.write(first.getContentAsByteArray(), 0, 123_457);
+
+        var resume = new MockHttpServletRequest("GET", "/download/batch.zip");
+        resume.addHeader("Range", "bytes=" + received.size() + "-");
+        resume.addHeader("If-Range", first.getHeader("ETag"));
+
+        var second = serve(resume);
+
+        assertEquals(206, second.getStatus());
+        assertEquals("bytes 123457-" + (ARCHIVE_SIZE - 1) + "/" + ARCHIVE_SIZE, second.getHeader("Content-Range"));
+
+        received.write(second.getContentAsByteArray());
+
+        assertArrayEquals(sha256(content), sha256(received.toByteArray()));
+    }
+
+    @Test
+    public void servesWholeFileWhenArchiveChanged() throws Exception {
+        var first = serve(new MockHttpServletRequest("GET", "/download/batch.zip"));
+
+        archive.setLastModified(archive.lastModified() - 60_000);
+
+        var resume = new MockHttpServletRequest("GET", "/download/batch.zip");
+        resume.addHeader("Range", "bytes=1000-");
+        resume.addHeader("If-Range", first.getHeader("ETag"));
+
+        var second = serve(resume);
+
+        assertEquals(200, second.getStatus());
+        assertArrayEquals(sha256(content), sha256(second.getContentAsByteArray()));
+    }
+
+    @Test
+    public void servesMultipleRanges() throws Exception {
+        var request = new MockHttpServletRequest("GET", "/download/batch.zip");
+        request.addHeader("Range", "bytes=0-9, -10");
+
+        var response = serve(request);
+        var body = response.getContentAsByteArray();
+        var text = new String(body, StandardCharsets.ISO_8859_1);
+
+        assertEquals(206, response.getStatus());
+        assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+        assertEquals(body.length, response.getContentLengthLong());
+        assertTrue(text.contains("Content-Range: bytes 0-9/" + ARCHIVE_SIZE));
+        assertTrue(text.contains("Content-Range: bytes " + (ARCHIVE_SIZE - 10) + "-" + (ARCHIVE_SIZE - 1) + "/" + ARCHIVE_SIZE));
+
+        int firstPart = text.indexOf("\r\n\r\n") + 4;
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 10), Arrays.copyOfRange(body, firstPart, firstPart + 10));
+    }
+
+    @Test
+    public void handlesConditionsAndInvalidRanges() throws Exception {
+        var first = serve(new MockHttpServletRequest("GET", "/download/batch.zip"));
+
+        var cached = new MockHttpServletRequest("GET", "/download/batch.zip");
+        cached.addHeader("If-None-Match", first.getHeader("ETag"));
+        assertEquals(304, serve(cached).getStatus());
+
+        var modifiedSince = new MockHttpServletRequest("GET", "/download/batch.zip");
+        modifiedSince.addHeader("If-Modified-Since", first.getHeader("Last-Modified"));
+        assertEquals(304, serve(modifiedSince).getStatus());
+
+        var outside = new MockHttpServletRequest("GET", "/download/batch.zip");
+        outside.addHeader("Range", "bytes=" + ARCHIVE_SIZE + "-");
+        var unsatisfiable = serve(outside);
+        assertEquals(416, unsatisfiable.getStatus());
+        assertEquals("bytes */" + ARCHIVE_SIZE, unsatisfiable.getHeader("Content-Range"));
+
+        var head = new MockHttpServletRequest("HEAD", "/download/batch.zip");
+        head.addHeader("Range", "bytes=10-19");
+        var headResponse = serve(head);
+        assertEquals(206, headResponse.getStatus());
+        assertEquals(10, headResponse.getContentLengthLong());
+        assertEquals(0, headResponse.getContentAsByteArray().length);
+    }
+
+    private MockHttpServletResponse serve(MockHttpServletRequest request) throws IOException {
+        var response = new MockHttpServletResponse();
+        RangeFileServer.serve(request, response, archive, "application/zip");
+        return response;
+    }
+
+    private static byte[] sha256(byte[] data) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+}
@@ -0,0 +1,90 @@
+import com.sun.net.httpserver.HttpServer;
+import cz.mzk.holly.fedora.FedoraHttpClient;
+import cz.mzk.holly.fedora.ResourceIndexClient;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Runs resource index queries against local stub serving canned risearch responses
+ *
+ * @author kremlacek
+ */
+public class ResourceIndexClientTest {
+
+    private static final String FIRST_PAGE = "\"page\",\"tiles\"\n"
+            + "info:fedora/uuid:p1,http://imageserver.mzk.cz/mzk03/001/048/367/2619267134/p1\n"
+            + "info:fedora/uuid:p2,http://imageserver.mzk.cz/mzk03/001/048/367/2619267134/p2\n";
+
+    private static final String SECOND_PAGE = "\"page\",\"tiles\"\n"
+            + "info:fedora/uuid:p3,\"http://imageserver.mzk.cz/NDK/2014/mzk/p3,v1\"\n";
+
+    private HttpServer server;
+    private final AtomicInteger requestCount = new AtomicInteger(0);
+
+    @BeforeEach
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fedora/risearch", exchange -> {
+            requestCount.incrementAndGet();
+
+            var query = URLDecoder.decode(exchange.getRequestURI().getRawQuery(), StandardCharsets.UTF_8);
+            String body;
+            int code = 200;
+
+            if (query.contains("uuid:broken")) {
+                body = "error";
+                code = 500;
+            } else if (query.contains("OFFSET 0")) {
+                body = FIRST_PAGE;
+            } else if (query.contains("OFFSET 2")) {
+                body = SECOND_PAGE;
+            } else {
+                body = "\"page\",\"tiles\"\n";
+            }
+
+            var bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    private ResourceIndexClient createClient() {
+        var address = "http://localhost:" + server.getAddress().getPort() + "/fedora";
+        var client = new FedoraHttpClient(address, null, null, 2, Duration.ofSeconds(5), Duration.ofSeconds(5));
+
+        return new ResourceIndexClient(client, 2);
+    }
+
+    @Test
+    public void loadsTilesUrlsOfAllPagesInPagedQueries() throws IOException {
+        var tiles = createClient().getPageTilesUrls("uuid:monograph");
+
+        assertEquals(3, tiles.size());
+        assertEquals("http://imageserver.mzk.cz/mzk03/001/048/367/2619267134/p1", tiles.get("uuid:p1"));
+        assertEquals("http://imageserver.mzk.cz/NDK/2014/mzk/p3,v1", tiles.get("uuid:p3"));
+        assertEquals(2, requestCount.get());
+    }
+
+    @Test
+    public void failedQueryIsReported() {
+        assertThrows(IOException.class, () -> createClient().getPageTilesUrls("uuid:broken"));
+        assertEquals(1, requestCount.get());
+    }
+}
@@ -0,0 +1,58 @@
+package cz.mzk.holly.extractor;
+
+import java.util.PriorityQueue;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Orders waiting batches by page count with aging
+ *
+ * @author kremlacek
+ */
+public class BatchSchedulerTest {
+
+    private static final long MINUTE = 60_000;
+
+    @Test
+    public void smallerBatchQueuedAtTheSameTimeGoesFirst() {
+        assertTrue(BatchScheduler.getPriority(10, 0, 100) < BatchScheduler.getPriority(5000, 0, 100));
+    }
+
+    @Test
+    public void olderBatchGoesFirstAmongSimilarOnes() {
+        assertTrue(BatchScheduler.getPriority(500, 0, 100) < BatchScheduler.getPriority(450, MINUTE, 100));
+    }
+
+    @Test
+    public void oldLargeBatchBeatsStreamOfNewSmallOnes() {
+        //single packer takes one batch per minute while a new small batch arrives every minute, after 50 minutes
+        //the small one counts 10 + 50 * 100 pages
+        assertEquals(50, minutesUntilPacked(5000, 10, 100));
+    }
+
+    @Test
+    public void largeBatchStarvesWithoutAging() {
+        assertEquals(-1, minutesUntilPacked(5000, 10, 0));
+    }
+
+    /**
+     * @return minute when the large batch is taken by the packer, -1 if not within a day
+     */
+    private static int minutesUntilPacked(long largePages, long smallPages, long aging) {
+        //priority and page count of waiting batches
+        var queue = new PriorityQueue<double[]>((a, b) -> Double.compare(a[0], b[0]));
+        queue.add(new double[] {BatchScheduler.getPriority(largePages, 0, aging), largePages});
+
+        for (int minute = 1; minute <= 24 * 60; minute++) {
+            queue.add(new double[] {BatchScheduler.getPriority(smallPages, minute * MINUTE, aging), smallPages});
+
+            if (queue.poll()[1] == largePages) {
+                return minute;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,61 @@
+package cz.mzk.holly.extractor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Selects ranges of items by their MODS values
+ *
+ * @author kremlacek
+ */
+public class RangeSelectorTest {
+
+    @Test
+    public void selectsRangeOfOrderedItems() throws IOException {
+        var values = new ArrayList<String>();
+
+        for (int year = 1870; year < 2020; year++) {
+            values.add(String.valueOf(year));
+        }
+
+        for (int probes = 1; probes <= 3; probes++) {
+            assertEquals(values.subList(120, 126), select(values, probes, "1990", "1995"));
+            assertEquals(values.subList(120, 150), select(values, probes, "1990", null));
+        }
+    }
+
+    @Test
+    public void unorderedItemsLookingOrderedInSampleAreScanned() throws IOException {
+        //the first 5 precedes smaller values, so that the range starts with it
+        var values = List.of("1", "5", "0", "3", "5", "6", "7", "8");
+
+        for (int probes : new int[] {1, 3}) {
+            assertEquals(values.subList(1, 8), select(values, probes, "5", null));
+        }
+    }
+
+    /**
+     * @return values of selected items, every item is identified by its value and index
+     */
+    private static List<String> select(List<String> values, int probes, String startValue, String endValue) throws IOException {
+        var uuids = new ArrayList<String>();
+
+        for (int i = 0; i < values.size(); i++) {
+            uuids.add(i + ":" + values.get(i));
+        }
+
+        var selector = new RangeSelector(uuid -> CompletableFuture.completedFuture(uuid.substring(uuid.indexOf(':') + 1)), probes);
+        var selected = new ArrayList<String>();
+
+        for (var uuid : selector.select(uuids, startValue, endValue)) {
+            selected.add(uuid.substring(uuid.indexOf(':') + 1));
+        }
+
+        return selected;
+    }
+}